@@ -0,0 +1,151 @@
+import java.util.*;
+
+/**
+ * Packs TEDS fields into an EPROM image and reads them back out.
+ *
+ * Fields are written lowest bit first into a continuous bit stream that skips
+ * the checksum byte at the start of every 32 byte page. Each write keeps the
+ * checksum of the pages it touches up to date, so the image never needs a
+ * separate checksum pass. The position in the bit stream is passed in by the
+ * caller and nothing is kept between calls, so any number of images can be
+ * encoded at once from different threads. Nothing is allocated per field.
+ *
+ * The buffer must already hold valid checksums before it is written to, as it
+ * does after TEDS_Writer.formatBuffer.
+ */
+public final class BitWriter {
+    public static final int PAGE_SIZE = 32;// bytes per page, the first byte of each page is its checksum
+    public static final int PAGE_BITS = (PAGE_SIZE - 1) * 8;// data bits per page
+
+    private BitWriter() {
+    }
+
+    /**
+     * Writes every field into the buffer one after the other, starting at the
+     * first data bit.
+     *
+     * @param fields compiled fields to write
+     * @param buffer formatted byte array to write to
+     * @return the number of bits written
+     */
+    public static int encode(List<TEDSField> fields, byte[] buffer) throws Exception {
+        int bit = 0;// position in the bit stream
+
+        for (int i = 0; i < fields.size(); i++) {
+            TEDSField field = fields.get(i);
+            if (bit + field.length > capacity(buffer))
+                throw new Exception("The TEDS doesn't fit in " + buffer.length + " bytes, " + field.name
+                        + " ends at bit " + (bit + field.length));
+            writeBits(buffer, bit, field.value, field.length);
+            bit += field.length;
+        }
+
+        return bit;
+    }
+
+    /**
+     * Writes up to 64 bits into the bit stream and updates the checksum of each
+     * page that changes. Bits of the buffer outside the field are left as they
+     * are.
+     *
+     * @param buffer byte array to write to
+     * @param bit    position in the bit stream of the field's lowest bit
+     * @param value  bits to write, lowest bit first
+     * @param length number of bits to write
+     */
+    public static void writeBits(byte[] buffer, int bit, long value, int length) {
+        while (length > 0) {
+            int page = bit / PAGE_BITS;
+            int offset = bit % PAGE_BITS;
+            int index = page * PAGE_SIZE + 1 + offset / 8;// byte holding this bit, after the checksum byte
+            int shift = offset % 8;
+            int count = Math.min(8 - shift, length);// bits that fit in this byte
+            int mask = ((1 << count) - 1) << shift;
+
+            int old_byte = buffer[index] & 0xFF;
+            int new_byte = (old_byte & ~mask) | (((int) value << shift) & mask);
+            buffer[index] = (byte) new_byte;
+            buffer[page * PAGE_SIZE] -= (byte) (new_byte - old_byte);// keep the twos complement sum at zero
+
+            value >>>= count;
+            bit += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Reads up to 64 bits back out of the bit stream.
+     *
+     * @param buffer byte array to read from
+     * @param bit    position in the bit stream of the field's lowest bit
+     * @param length number of bits to read
+     * @return the bits read, lowest bit first
+     */
+    public static long readBits(byte[] buffer, int bit, int length) {
+        long value = 0;
+        int done = 0;// bits read so far
+
+        while (done < length) {
+            int page = bit / PAGE_BITS;
+            int offset = bit % PAGE_BITS;
+            int index = page * PAGE_SIZE + 1 + offset / 8;// byte holding this bit, after the checksum byte
+            int shift = offset % 8;
+            int count = Math.min(8 - shift, length - done);// bits left in this byte
+
+            long bits = ((buffer[index] & 0xFF) >>> shift) & ((1 << count) - 1);
+            value |= bits << done;
+
+            bit += count;
+            done += count;
+        }
+
+        return value;
+    }
+
+    /**
+     * Checks the checksum of a page.
+     *
+     * @param buffer byte array
+     * @param page   page number
+     * @return true if the page's bytes add up to zero
+     */
+    public static boolean checksumValid(byte[] buffer, int page) {
+        int sum = 0;
+        for (int i = page * PAGE_SIZE; i < Math.min((page + 1) * PAGE_SIZE, buffer.length); i++)
+            sum += buffer[i];
+        return (sum & 0xFF) == 0;
+    }
+
+    /**
+     * Gets the number of data bits the buffer can hold.
+     *
+     * @param buffer byte array
+     * @return bits available outside of the checksum bytes
+     */
+    public static int capacity(byte[] buffer) {
+        return capacity(buffer.length);
+    }
+
+    /**
+     * Gets the number of data bits a buffer of the given length can hold. A
+     * partial last page holds whatever bytes it has after its checksum byte.
+     *
+     * @param length buffer length in bytes
+     * @return bits available outside of the checksum bytes
+     */
+    public static int capacity(int length) {
+        return length / PAGE_SIZE * PAGE_BITS + Math.max(0, length % PAGE_SIZE - 1) * 8;
+    }
+
+    /**
+     * Gets the shortest buffer that can hold the given number of bits, the
+     * reverse of capacity.
+     *
+     * @param bits length of the bit stream
+     * @return bytes up to and including the last one holding a bit
+     */
+    public static int bytesFor(int bits) {
+        int rest = bits % PAGE_BITS;// bits in the last, partial page
+        return bits / PAGE_BITS * PAGE_SIZE + (rest == 0 ? 0 : 1 + (rest + 7) / 8);
+    }
+}
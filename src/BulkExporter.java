@@ -0,0 +1,216 @@
+import java.util.*;
+import java.util.stream.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Offline export of TEDS images for a whole production lot.
+ *
+ * The input is a CSV file with a header row of template field names and one row
+ * per sensor holding that sensor's values. Columns left empty keep the
+ * template's entry, and an optional "ID" column names each image. Rows are read
+ * a chunk at a time, each chunk is encoded in parallel on the fork-join pool by
+ * patching the template's base image, and the images are written out in input
+ * order before the next chunk is read, so memory use stays the same however
+ * many rows there are.
+ *
+ * Output formats:
+ *
+ * <pre>
+ * bin      directory of raw &lt;id&gt;.bin images
+ * hex      directory of Intel HEX &lt;id&gt;.hex images
+ * archive  single image archive with an index, see ImageArchive
+ * </pre>
+ */
+public class BulkExporter {
+    private static final int CHUNK = 4096;// rows encoded together
+
+    /**
+     * Exports an image for every row of the input file.
+     *
+     * @param writer template to encode with
+     * @param input  CSV file of per-sensor values
+     * @param output output directory, or archive file for the archive format
+     * @param format bin, hex or archive
+     * @param size   image size in bytes, the size of the device's main memory
+     * @return the number of images exported
+     */
+    public static int export(TEDS_Writer writer, File input, File output, String format, int size)
+            throws Exception {
+        if (!format.equals("bin") && !format.equals("hex") && !format.equals("archive"))
+            throw new Exception("Unrecognized export format " + format + ", use bin, hex or archive");
+
+        ImagePatcher patcher = new ImagePatcher(writer.getFields(), writer.buildImage(size));
+        int count = 0;// images exported so far
+
+        if (!format.equals("archive"))
+            Files.createDirectories(output.toPath());
+
+        try (BufferedReader in = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8);
+                ImageArchive archive = format.equals("archive") ? new ImageArchive(output) : null) {
+            String line = in.readLine();
+            if (line == null)
+                throw new Exception(input + " is empty");
+
+            // check every column other than the ID is a field of the template
+            String[] header = CSV.parse(line);
+            int id_col = -1;
+            for (int i = 0; i < header.length; i++) {
+                if (header[i].equalsIgnoreCase("ID"))
+                    id_col = i;
+                else
+                    patcher.field(header[i]);
+            }
+
+            ArrayList<String[]> chunk = new ArrayList<>(CHUNK);
+            while (true) {
+                line = in.readLine();
+                if (line != null && line.trim().length() > 0)
+                    chunk.add(CSV.parse(line));
+                if (chunk.size() == CHUNK || (line == null && chunk.size() > 0)) {
+                    byte[][] images = encode(patcher, header, id_col, chunk, count);
+                    for (int i = 0; i < images.length; i++) {
+                        String name = name(chunk.get(i), id_col, count + i);
+                        if (archive != null)
+                            archive.append(name, System.currentTimeMillis(), images[i]);
+                        else if (format.equals("bin"))
+                            Files.write(new File(output, name + ".bin").toPath(), images[i]);
+                        else
+                            Files.write(new File(output, name + ".hex").toPath(),
+                                    toIntelHex(images[i]).getBytes(StandardCharsets.US_ASCII));
+                    }
+                    count += chunk.size();
+                    chunk.clear();
+                }
+                if (line == null)
+                    break;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Encodes a chunk of rows in parallel.
+     *
+     * @param patcher patcher holding the template's base image
+     * @param header  field name of each column
+     * @param id_col  column of the ID, or -1 if there isn't one
+     * @param rows    values of each row
+     * @param first   number of the first row of the chunk
+     * @return the image for each row, in the same order
+     */
+    private static byte[][] encode(ImagePatcher patcher, String[] header, int id_col, List<String[]> rows,
+            int first) throws Exception {
+        byte[][] images = new byte[rows.size()][];
+
+        try {
+            IntStream.range(0, rows.size()).parallel().forEach(i -> {
+                String[] row = rows.get(i);
+                HashMap<String, String> entries = new HashMap<>();
+                for (int col = 0; col < header.length && col < row.length; col++)
+                    if (col != id_col && row[col].length() > 0)
+                        entries.put(header[col], row[col]);
+                try {
+                    images[i] = patcher.image(entries);
+                } catch (Exception e) {
+                    throw new RuntimeException("Row " + (first + i + 2) + ": " + e.getMessage(), e);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new Exception(e.getMessage(), e.getCause());
+        }
+
+        return images;
+    }
+
+    /**
+     * Gets the file name for a row's image.
+     *
+     * @param row    values of the row
+     * @param id_col column of the ID, or -1 if there isn't one
+     * @param number number of the row
+     * @return the ID with characters that aren't safe in file names replaced, or
+     *         the row number
+     */
+    private static String name(String[] row, int id_col, int number) {
+        if (id_col != -1 && id_col < row.length && row[id_col].length() > 0)
+            return row[id_col].replaceAll("[^A-Za-z0-9._-]", "_");
+        return String.format("%06d", number + 1);
+    }
+
+    /**
+     * Converts an image to Intel HEX with 16 byte data records.
+     *
+     * @param data image bytes, at most 64KB
+     * @return the Intel HEX text
+     */
+    public static String toIntelHex(byte[] data) throws Exception {
+        if (data.length > 0x10000)
+            throw new Exception("Images over 64KB can't be written as Intel HEX");
+
+        StringBuilder hex = new StringBuilder(data.length * 3);
+        for (int address = 0; address < data.length; address += 16) {
+            int length = Math.min(16, data.length - address);
+            int sum = length + (address >> 8) + (address & 0xFF);// record type 00 adds nothing
+            hex.append(':');
+            appendHex(hex, length);
+            appendHex(hex, address >> 8);
+            appendHex(hex, address & 0xFF);
+            appendHex(hex, 0);
+            for (int i = 0; i < length; i++) {
+                int value = data[address + i] & 0xFF;
+                sum += value;
+                appendHex(hex, value);
+            }
+            appendHex(hex, (-sum) & 0xFF);
+            hex.append("\r\n");
+        }
+        hex.append(":00000001FF\r\n");
+
+        return hex.toString();
+    }
+
+    /**
+     * Converts Intel HEX back to an image. Only data records are used and the
+     * image is as long as the highest address written.
+     *
+     * @param hex Intel HEX text
+     * @return the image bytes
+     */
+    public static byte[] fromIntelHex(String hex) throws Exception {
+        byte[] image = new byte[0];
+
+        for (String line : hex.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() < 11 || line.charAt(0) != ':')
+                continue;
+            int length = Integer.parseInt(line.substring(1, 3), 16);
+            int address = Integer.parseInt(line.substring(3, 7), 16);
+            int type = Integer.parseInt(line.substring(7, 9), 16);
+            if (type == 1)
+                break;// end of file record
+            if (type != 0)
+                continue;
+
+            if (address + length > image.length)
+                image = Arrays.copyOf(image, address + length);
+            for (int i = 0; i < length; i++)
+                image[address + i] = (byte) Integer.parseInt(line.substring(9 + i * 2, 11 + i * 2), 16);
+        }
+
+        return image;
+    }
+
+    /**
+     * Appends a byte as two hex digits.
+     *
+     * @param hex   text to append to
+     * @param value byte value from 0 to 255
+     */
+    private static void appendHex(StringBuilder hex, int value) {
+        hex.append(Character.toUpperCase(Character.forDigit(value >> 4, 16)));
+        hex.append(Character.toUpperCase(Character.forDigit(value & 0x0F, 16)));
+    }
+}
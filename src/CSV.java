@@ -0,0 +1,61 @@
+import java.util.*;
+
+/**
+ * Minimal CSV helpers for the bulk export and decode files. Values containing
+ * commas or quotes are quoted, which matters because TEDS field names such as
+ * "Excitation level, nominal" contain commas.
+ */
+public class CSV {
+    private CSV() {
+    }
+
+    /**
+     * Splits a CSV line into its values.
+     *
+     * @param line line to split
+     * @return the unquoted values
+     */
+    public static String[] parse(String line) {
+        ArrayList<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;// true inside a quoted value
+        boolean was_quoted = false;// true if the current value was quoted, which keeps its spaces
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');// escaped quote
+                    i++;
+                } else if (c == '"')
+                    quoted = false;
+                else
+                    value.append(c);
+            } else if (c == '"')
+                quoted = was_quoted = true;
+            else if (c == ',') {
+                values.add(was_quoted ? value.toString() : value.toString().trim());
+                value.setLength(0);
+                was_quoted = false;
+            } else
+                value.append(c);
+        }
+        values.add(was_quoted ? value.toString() : value.toString().trim());
+
+        return values.toArray(new String[0]);
+    }
+
+    /**
+     * Quotes a value if it needs it.
+     *
+     * @param value value to write
+     * @return the value, quoted if it contains a comma, quote or line break or
+     *         starts or ends with a space
+     */
+    public static String quote(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1
+                && value.trim().length() == value.length())
+            return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.*;
+
+import com.dalsemi.onewire.adapter.*;
+import com.dalsemi.onewire.container.*;
+import com.dalsemi.onewire.utils.*;
+
+/**
+ * Watches a 1-Wire bus for EPROMs being connected and removed.
+ *
+ * The bus is searched by ROM ID only, and a container is only created the first
+ * time a ROM ID shows up. A device that stays on the fixture is only reported
+ * once, and is reported again only after it has been removed and reconnected.
+ * When nothing changes between searches the time between searches backs off up
+ * to a maximum so an idle station doesn't keep the bus busy.
+ *
+ * Exclusive use of the adapter must already be held while searching. The poll
+ * times can be set with the system properties teds.poll.min and
+ * teds.poll.max in milliseconds.
+ */
+public class EEPROMMonitor {
+    private DSPortAdapter adapter;// adapter to search
+    private long min_poll;// time between searches right after a change in ms
+    private long max_poll;// longest time between searches when idle in ms
+    private long poll;// current time between searches in ms
+    private HashSet<Long> present = new HashSet<>();// rom ids currently on the bus
+    private ArrayDeque<OneWireContainer> arrivals = new ArrayDeque<>();// eproms connected but not yet returned
+
+    public EEPROMMonitor(DSPortAdapter adapter) {
+        this(adapter, Long.getLong("teds.poll.min", 50), Long.getLong("teds.poll.max", 1000));
+    }
+
+    public EEPROMMonitor(DSPortAdapter adapter, long min_poll, long max_poll) {
+        this.adapter = adapter;
+        this.min_poll = min_poll;
+        this.max_poll = Math.max(min_poll, max_poll);
+        this.poll = min_poll;
+    }
+
+    /**
+     * Waits until an EPROM that wasn't on the bus before is connected.
+     *
+     * @return the container of the newly connected EPROM
+     */
+    public OneWireContainer waitForArrival() throws Exception {
+        boolean waiting = false;
+
+        while (arrivals.isEmpty()) {
+            long start_time = System.nanoTime();
+            if (search()) {
+                if (!arrivals.isEmpty())
+                    Metrics.time(Metrics.Phase.SEARCH, start_time);// only the search that found the device
+                poll = min_poll;// something changed, search quickly again
+            } else {
+                if (!waiting)
+                    System.out.print("No EEPROM Connected. Please connect an EEPROM.\r");
+                waiting = true;
+                Thread.sleep(poll);
+                poll = Math.min(poll * 2, max_poll);
+            }
+        }
+
+        return arrivals.poll();
+    }
+
+    /**
+     * Searches the bus once and records any devices that were connected or
+     * removed since the last search.
+     *
+     * @return true if any device was connected or removed
+     */
+    public boolean search() throws Exception {
+        HashSet<Long> found = new HashSet<>();// rom ids on the bus this search
+        boolean changed = false;
+
+        // search by rom id only, containers are created for new devices below
+        boolean more = adapter.findFirstDevice();
+        while (more) {
+            found.add(adapter.getAddressAsLong());
+            more = adapter.findNextDevice();
+        }
+
+        // forget devices that have been removed so they are handled again when reconnected
+        for (Iterator<Long> it = present.iterator(); it.hasNext();) {
+            long address = it.next();
+            if (!found.contains(address)) {
+                it.remove();
+                changed = true;
+                arrivals.removeIf(owd -> owd.getAddressAsLong() == address);
+                System.out.println("Device removed: " + Address.toString(address));
+            }
+        }
+
+        // queue eproms that weren't there before
+        for (long address : found) {
+            if (present.add(address)) {
+                changed = true;
+                OneWireContainer owd = adapter.getDeviceContainer(address);
+                if (TEDS_Writer.isEPROM(owd))
+                    arrivals.add(owd);
+            }
+        }
+
+        return changed;
+    }
+}
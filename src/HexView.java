@@ -0,0 +1,73 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+
+/**
+ * Annotated hex listing of EPROM images, kept next to an image archive for
+ * reading by eye.
+ *
+ * Each image gets a heading line with its name, time and size, then one line
+ * per page with the page number, the byte offset, the page's bytes and whether
+ * the page checksum is valid. Lines are written straight to a buffered file,
+ * so no text is built up for more than one line at a time.
+ *
+ * <pre>
+ * 2F0000001A2B3C23  2026-10-16T09:30:00Z  512 bytes
+ *   page  0  0000  9B 43 C0 08 ...  checksum ok
+ * </pre>
+ */
+public class HexView implements Closeable {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final int PAGE_SIZE = BitWriter.PAGE_SIZE;// bytes per line
+
+    private BufferedWriter out;// listing file, opened for appending
+    private char[] line = new char[3 * PAGE_SIZE];// hex of the current page
+
+    /**
+     * Opens a listing for appending, creating it if it doesn't exist.
+     *
+     * @param file listing file
+     */
+    public HexView(File file) throws IOException {
+        out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Appends the listing of an image.
+     *
+     * @param name unit ID or ROM ID
+     * @param time milliseconds since the epoch
+     * @param data image bytes
+     */
+    public synchronized void append(String name, long time, byte[] data) throws IOException {
+        out.write(name + "  " + Instant.ofEpochMilli(time) + "  " + data.length + " bytes\n");
+        for (int page = 0; page * PAGE_SIZE < data.length; page++) {
+            int start = page * PAGE_SIZE;
+            int length = Math.min(PAGE_SIZE, data.length - start);
+            for (int i = 0; i < length; i++) {
+                int v = data[start + i] & 0xFF;
+                line[i * 3] = HEX[v >>> 4];
+                line[i * 3 + 1] = HEX[v & 0x0F];
+                line[i * 3 + 2] = ' ';
+            }
+            out.write(String.format("  page %2d  %04X  ", page, start));
+            out.write(line, 0, length * 3);
+            out.write(BitWriter.checksumValid(data, page) ? " checksum ok\n" : " checksum bad\n");
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Writes any pending lines to disk.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
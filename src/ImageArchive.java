@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Append-only archive of EPROM images.
+ *
+ * Each record holds a name (a unit ID or ROM ID), a timestamp and the image
+ * bytes. Records are appended through a buffered file channel, and the name and
+ * offset of each record are appended to an index file next to the archive
+ * (archive.idx) so a single image can be found without reading the whole
+ * archive. Nothing is kept in memory apart from the write buffer, so archives
+ * can grow to any number of records.
+ *
+ * <pre>
+ * record: int magic, short name length, name (UTF-8), long time, int length, image
+ * index:  short name length, name (UTF-8), long offset
+ * </pre>
+ */
+public class ImageArchive implements Closeable {
+    private static final int MAGIC = 0x54454452;// "TEDR"
+
+    private FileChannel archive;// archive file, opened for appending
+    private FileChannel index;// index file, opened for appending
+    private ByteBuffer archive_buf = ByteBuffer.allocateDirect(64 * 1024);// pending archive bytes
+    private ByteBuffer index_buf = ByteBuffer.allocateDirect(16 * 1024);// pending index bytes
+    private long offset;// offset of the next record in the archive
+
+    /**
+     * A record read back from an archive
+     */
+    public static class Record {
+        public final String name;// unit ID or ROM ID
+        public final long time;// milliseconds since the epoch
+        public final byte[] data;// image bytes
+
+        public Record(String name, long time, byte[] data) {
+            this.name = name;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Handles each record as an archive is read
+     */
+    public interface RecordHandler {
+        void record(Record record) throws Exception;
+    }
+
+    /**
+     * Opens an archive for appending, creating it if it doesn't exist.
+     *
+     * @param file archive file
+     */
+    public ImageArchive(File file) throws IOException {
+        archive = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        index = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        offset = archive.size();
+    }
+
+    /**
+     * Gets the index file of an archive.
+     *
+     * @param file archive file
+     * @return the index file next to the archive
+     */
+    public static File indexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    /**
+     * Appends a record to the archive.
+     *
+     * @param name unit ID or ROM ID
+     * @param time milliseconds since the epoch
+     * @param data image bytes
+     */
+    public synchronized void append(String name, long time, byte[] data) throws IOException {
+        byte[] name_bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 2 + name_bytes.length + 8 + 4 + data.length;
+
+        // make room, large images are written straight through
+        if (archive_buf.remaining() < length)
+            flush(archive, archive_buf);
+        if (archive_buf.remaining() < length) {
+            ByteBuffer record = ByteBuffer.allocate(length);
+            putRecord(record, name_bytes, time, data);
+            record.flip();
+            while (record.hasRemaining())
+                archive.write(record);
+        } else
+            putRecord(archive_buf, name_bytes, time, data);
+
+        if (index_buf.remaining() < 2 + name_bytes.length + 8)
+            flush(index, index_buf);
+        index_buf.putShort((short) name_bytes.length).put(name_bytes).putLong(offset);
+
+        offset += length;
+    }
+
+    /**
+     * Puts a record into a byte buffer.
+     */
+    private static void putRecord(ByteBuffer buffer, byte[] name_bytes, long time, byte[] data) {
+        buffer.putInt(MAGIC).putShort((short) name_bytes.length).put(name_bytes).putLong(time).putInt(data.length)
+                .put(data);
+    }
+
+    /**
+     * Writes any pending bytes to the channel.
+     *
+     * @param channel channel to write to
+     * @param buffer  pending bytes
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Writes any pending records to disk.
+     */
+    public synchronized void flush() throws IOException {
+        flush(archive, archive_buf);
+        flush(index, index_buf);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        archive.close();
+        index.close();
+    }
+
+    /**
+     * Checks if a file is an image archive by its first record's magic number,
+     * whatever the file is called.
+     *
+     * @param file file to check
+     * @return true if the file starts with an archive record
+     */
+    public static boolean isArchive(File file) {
+        if (!file.isFile() || file.length() < 4)
+            return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads every record of an archive in order, one at a time.
+     *
+     * @param file    archive file
+     * @param handler handles each record
+     */
+    public static void read(File file, RecordHandler handler) throws Exception {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(FileChannel.open(file.toPath())), 64 * 1024))) {
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    return;// end of the archive
+                }
+                if (magic != MAGIC)
+                    throw new Exception(file + " is not an image archive or is damaged");
+
+                byte[] name_bytes = new byte[in.readUnsignedShort()];
+                in.readFully(name_bytes);
+                long time = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                handler.record(new Record(new String(name_bytes, StandardCharsets.UTF_8), time, data));
+            }
+        }
+    }
+}
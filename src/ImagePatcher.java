@@ -0,0 +1,109 @@
+import java.util.*;
+
+/**
+ * Makes per-unit images from an already encoded base image.
+ *
+ * The bit offset of every field is worked out once, so a unit's image is just a
+ * copy of the base image with the fields that differ written over it. Only the
+ * checksums of the pages those fields sit in are adjusted. Patchers are
+ * read-only once made and can be shared between threads.
+ */
+public class ImagePatcher {
+    public static final String SERIAL_FIELD = "Serial Number";// field used for auto incrementing serial numbers
+
+    private byte[] base;// encoded image every unit starts from
+    private HashMap<String, TEDSField> fields = new HashMap<>();// fields by name
+    private HashMap<String, Integer> offsets = new HashMap<>();// bit offset of each field by name
+
+    /**
+     * @param fields compiled fields the base image was encoded from
+     * @param base   encoded base image
+     */
+    public ImagePatcher(List<TEDSField> fields, byte[] base) {
+        this.base = base.clone();
+
+        int bit = 0;
+        for (TEDSField field : fields) {
+            this.fields.put(field.name, field);
+            offsets.put(field.name, bit);
+            bit += field.length;
+        }
+    }
+
+    /**
+     * Gets a field of the template.
+     *
+     * @param name field name
+     * @return the compiled field
+     */
+    public TEDSField field(String name) throws Exception {
+        TEDSField field = fields.get(name);
+        if (field == null)
+            throw new Exception("The template doesn't have a " + name + " field");
+        return field;
+    }
+
+    /**
+     * Gets the bit offset of a field in the image's bit stream.
+     *
+     * @param name field name
+     * @return position of the field's lowest bit
+     */
+    public int offset(String name) throws Exception {
+        field(name);
+        return offsets.get(name);
+    }
+
+    /**
+     * Writes a new entry for a field into an image.
+     *
+     * @param image image to change
+     * @param name  field name
+     * @param entry value to write, as it would be written in the spreadsheet
+     */
+    public void patch(byte[] image, String name, String entry) throws Exception {
+        TEDSField field = field(name);
+        if (!field.withinRange(entry))
+            throw new Exception(entry + " is outside of the range for " + name);
+        patch(image, name, field.encode(entry));
+    }
+
+    /**
+     * Writes already encoded bits for a field into an image.
+     *
+     * @param image image to change
+     * @param name  field name
+     * @param bits  encoded value, lowest bit first
+     */
+    public void patch(byte[] image, String name, long bits) throws Exception {
+        TEDSField field = field(name);
+        if (!field.fits(bits))
+            throw new Exception(bits + " is outside of the range for " + name);
+        BitWriter.writeBits(image, offsets.get(name), bits, field.length);
+    }
+
+    /**
+     * Makes an image with some fields changed from the base image.
+     *
+     * @param entries new entries by field name
+     * @return the patched copy of the base image
+     */
+    public byte[] image(Map<String, String> entries) throws Exception {
+        byte[] image = base.clone();
+        for (Map.Entry<String, String> entry : entries.entrySet())
+            patch(image, entry.getKey(), entry.getValue());
+        return image;
+    }
+
+    /**
+     * Makes an image with a different serial number.
+     *
+     * @param serial serial number
+     * @return the patched copy of the base image
+     */
+    public byte[] serialImage(long serial) throws Exception {
+        byte[] image = base.clone();
+        patch(image, SERIAL_FIELD, serial);
+        return image;
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+
+/**
+ * Append-only record of every unit programmed, indexed by ROM ID.
+ *
+ * Each entry holds the ROM ID, when it was programmed, the hash of the template
+ * and of the image written, whether it passed and how long each phase took.
+ * Entries are fixed size and written into a memory-mapped file, so appending
+ * is a copy into memory, and the latest entry for each ROM ID is kept in an
+ * in-memory index built by a single pass over the file when it is opened. A
+ * ledger holds up to 16 million entries, the most a single mapping can hold.
+ *
+ * <pre>
+ * header: int magic, int version, int record size, int unused, long count
+ * entry:  long rom, long time, template hash (32), image hash (32), byte passed,
+ *         3 unused, int microseconds of each phase, unused up to 128 bytes
+ * </pre>
+ */
+public class Ledger implements Closeable {
+    private static final int MAGIC = 0x5445444C;// "TEDL"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 128;// bytes per entry, the header takes one entry's space
+    private static final int HASH_SIZE = 32;// bytes of a SHA-256 hash
+    private static final int PHASES_OFFSET = 84;// offset of the phase timings in an entry
+    private static final int GROWTH = 8192;// entries the file is grown by at least
+    private static final int MAX_ENTRIES = Integer.MAX_VALUE / RECORD_SIZE - 1;// entries a mapping can hold
+
+    private static final HashMap<File, Ledger> open = new HashMap<>();// ledgers open in this process
+
+    private FileChannel channel;// ledger file
+    private MappedByteBuffer map;// ledger file mapped into memory
+    private int count;// entries in the ledger
+    private int capacity;// entries the mapped region can hold
+    private LongIntMap index = new LongIntMap();// latest entry for each rom id
+
+    /**
+     * An entry read back from the ledger
+     */
+    public static class Entry {
+        public final long rom;// rom id
+        public final long time;// milliseconds since the epoch
+        public final byte[] template_hash;// SHA-256 of the template
+        public final byte[] image_hash;// SHA-256 of the pages of the image holding the TEDS
+        public final boolean passed;// true if the image was verified
+        public final int[] phase_us;// microseconds of each Metrics.Phase
+
+        private Entry(ByteBuffer buffer, int offset) {
+            rom = buffer.getLong(offset);
+            time = buffer.getLong(offset + 8);
+            template_hash = new byte[HASH_SIZE];
+            image_hash = new byte[HASH_SIZE];
+            buffer.get(offset + 16, template_hash);
+            buffer.get(offset + 16 + HASH_SIZE, image_hash);
+            passed = buffer.get(offset + 16 + 2 * HASH_SIZE) != 0;
+            phase_us = new int[Metrics.Phase.values().length];
+            for (int i = 0; i < phase_us.length; i++)
+                phase_us[i] = buffer.getInt(offset + PHASES_OFFSET + i * 4);
+        }
+    }
+
+    /**
+     * Gets the ledger set with teds.ledger, TEDS_Ledger.dat by default.
+     *
+     * @return the open ledger, or null if teds.ledger is set to off
+     */
+    public static Ledger open() throws IOException {
+        String file = System.getProperty("teds.ledger", "TEDS_Ledger.dat");
+        return file.equalsIgnoreCase("off") ? null : open(new File(file));
+    }
+
+    /**
+     * Opens a ledger, creating it if it doesn't exist. Each file is only opened
+     * once per process and shared by every station.
+     *
+     * @param file ledger file
+     * @return the open ledger
+     */
+    public static synchronized Ledger open(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        Ledger ledger = open.get(file);
+        if (ledger == null) {
+            ledger = new Ledger(file);
+            open.put(file, ledger);
+        }
+        return ledger;
+    }
+
+    private Ledger(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+
+        if (!created) {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE)
+                throw new IOException(file + " is not a programming ledger or is from another version");
+            // an entry only counts once the header says so, anything after it was cut off
+            count = (int) Math.min(header.getLong(16), channel.size() / RECORD_SIZE - 1);
+        }
+
+        remap(Math.max(count + GROWTH, (int) (channel.size() / RECORD_SIZE) - 1));
+        if (created)
+            map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, RECORD_SIZE).putLong(16, 0);
+
+        // index the latest entry of each rom id
+        for (int i = 0; i < count; i++)
+            index.put(map.getLong(RECORD_SIZE * (i + 1)), i);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                System.out.println("Couldn't save the ledger: " + e);
+            }
+        }));
+    }
+
+    /**
+     * Maps enough of the file to hold the given number of entries.
+     *
+     * @param entries entries to make room for
+     */
+    private void remap(int entries) throws IOException {
+        if (map != null)
+            map.force();
+        capacity = entries;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) RECORD_SIZE * (capacity + 1));
+    }
+
+    /**
+     * Gets the latest entry for a device.
+     *
+     * @param rom ROM ID of the device
+     * @return the entry, or null if the device has never been programmed
+     */
+    public synchronized Entry lookup(long rom) {
+        int i = index.get(rom);
+        return i < 0 ? null : new Entry(map, RECORD_SIZE * (i + 1));
+    }
+
+    /**
+     * Appends an entry for a programmed unit.
+     *
+     * @param rom           ROM ID of the unit
+     * @param template_hash SHA-256 of the template
+     * @param image_hash    SHA-256 of the pages of the image holding the TEDS
+     * @param passed        true if the image was verified
+     * @param phase_nanos   nanoseconds of each Metrics.Phase, or null if it
+     *                      wasn't timed
+     */
+    public synchronized void append(long rom, byte[] template_hash, byte[] image_hash, boolean passed,
+            long[] phase_nanos) throws IOException {
+        if (count == MAX_ENTRIES)
+            throw new IOException("The ledger is full, move it aside to start a new one");
+        if (count == capacity)
+            remap((int) Math.min(MAX_ENTRIES, Math.max(capacity * 2L, capacity + GROWTH)));
+
+        int offset = RECORD_SIZE * (count + 1);
+        map.putLong(offset, rom).putLong(offset + 8, System.currentTimeMillis());
+        map.put(offset + 16, template_hash, 0, HASH_SIZE).put(offset + 16 + HASH_SIZE, image_hash, 0, HASH_SIZE);
+        map.put(offset + 16 + 2 * HASH_SIZE, (byte) (passed ? 1 : 0));
+        for (int i = 0; phase_nanos != null && i < phase_nanos.length; i++)
+            map.putInt(offset + PHASES_OFFSET + i * 4, (int) Math.min(Integer.MAX_VALUE, phase_nanos[i] / 1000));
+
+        // count the entry only once it has been written
+        index.put(rom, count);
+        map.putLong(16, ++count);
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return entries appended to the ledger
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Writes the ledger to disk. The memory-mapped file is written back by the
+     * operating system even if the application is killed, so this only
+     * matters if the machine loses power.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            map.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Hashes data with SHA-256.
+     *
+     * @param data bytes to hash
+     * @return the 32 byte hash
+     */
+    public static byte[] hash(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    /**
+     * Converts a hex string, such as a template hash, to bytes.
+     *
+     * @param hex hex digits
+     * @return the bytes
+     */
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+
+    /**
+     * Open addressing map from rom id to entry number, so the index takes 12
+     * bytes per device instead of a boxed map entry.
+     */
+    private static class LongIntMap {
+        private long[] keys = new long[1024];// rom ids
+        private int[] values = new int[1024];// entry number + 1, 0 for an empty slot
+        private int size;// rom ids in the map
+
+        int get(long key) {
+            for (int slot = slot(key, keys.length);; slot = (slot + 1) & (keys.length - 1)) {
+                if (values[slot] == 0)
+                    return -1;
+                if (keys[slot] == key)
+                    return values[slot] - 1;
+            }
+        }
+
+        void put(long key, int value) {
+            if (size * 2 >= keys.length)
+                grow();
+            for (int slot = slot(key, keys.length);; slot = (slot + 1) & (keys.length - 1)) {
+                if (values[slot] == 0) {
+                    keys[slot] = key;
+                    size++;
+                } else if (keys[slot] != key)
+                    continue;
+                values[slot] = value + 1;
+                return;
+            }
+        }
+
+        private void grow() {
+            long[] old_keys = keys;
+            int[] old_values = values;
+            keys = new long[old_keys.length * 2];
+            values = new int[old_values.length * 2];
+            size = 0;
+            for (int i = 0; i < old_keys.length; i++)
+                if (old_values[i] != 0)
+                    put(old_keys[i], old_values[i] - 1);
+        }
+
+        private static int slot(long key, int length) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32)) & (length - 1);
+        }
+    }
+}
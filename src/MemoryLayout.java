@@ -0,0 +1,180 @@
+import java.util.*;
+
+import com.dalsemi.onewire.container.*;
+
+/**
+ * Where a TEDS image goes in a device's memory.
+ *
+ * The image covers the main memory bank followed by any other general purpose,
+ * writable, non-volatile banks the device has, so a TEDS too big for main
+ * memory carries on in the next bank. Only banks that hold whole 32 byte TEDS
+ * pages are used, so no TEDS page is ever split across banks. Each bank keeps
+ * its own page size, and the pages to program are worked out from how many
+ * TEDS pages the template actually fills, so pages the TEDS doesn't reach are
+ * never read, written or verified.
+ *
+ * <pre>
+ * image:  | main memory            | next bank  | ...
+ * TEDS:   | page 0 | page 1 | ...  unused pages are left as they are
+ * </pre>
+ */
+public class MemoryLayout {
+    private static final int PAGE_SIZE = BitWriter.PAGE_SIZE;// bytes per TEDS page, the first byte is its checksum
+
+    private ArrayList<MemoryBank> banks = new ArrayList<>();// banks the image covers, main memory first
+    private ArrayList<Integer> starts = new ArrayList<>();// offset of each bank in the image
+    private int size;// image size in bytes
+
+    /**
+     * A page of a memory bank and the part of the image it holds
+     */
+    public static class Page {
+        public final MemoryBank bank;// bank the page is in
+        public final int page;// page number in the bank
+        public final int start;// offset of the page in the bank
+        public final int offset;// offset of the page in the image
+        public final int length;// bytes of the image in the page
+
+        private Page(MemoryBank bank, int page, int start, int offset, int length) {
+            this.bank = bank;
+            this.page = page;
+            this.start = start;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Checks if this page directly follows another in the same bank, so it
+         * can be read without selecting the device again.
+         *
+         * @param previous page read before this one, or null
+         * @return true if the read can carry on from the previous page
+         */
+        public boolean follows(Page previous) {
+            return previous != null && previous.bank == bank && previous.page + 1 == page;
+        }
+    }
+
+    /**
+     * Works out the layout of a device's memory.
+     *
+     * @param device device the image is for
+     * @return the layout
+     */
+    public static MemoryLayout of(OneWireContainer device) throws Exception {
+        MemoryLayout layout = new MemoryLayout();
+        ArrayList<MemoryBank> others = new ArrayList<>();// usable banks after main memory
+        for (Enumeration bank_enum = device.getMemoryBanks(); bank_enum.hasMoreElements();) {
+            MemoryBank bank = (MemoryBank) bank_enum.nextElement();
+            if (bank.getBankDescription().toLowerCase().indexOf("main") != -1 && layout.banks.isEmpty())
+                layout.add(bank);// main memory always comes first
+            else if (bank.isGeneralPurposeMemory() && bank.isNonVolatile() && !bank.isReadOnly()
+                    && bank.getSize() > 0 && bank.getSize() % PAGE_SIZE == 0)
+                others.add(bank);
+        }
+        if (layout.banks.isEmpty())
+            throw new Exception("The device doesn't contain any memory banks");
+
+        for (MemoryBank bank : others)
+            layout.add(bank);
+        return layout;
+    }
+
+    private void add(MemoryBank bank) {
+        banks.add(bank);
+        starts.add(size);
+        size += bank.getSize();
+    }
+
+    /**
+     * Gets the number of bytes of image that hold a TEDS of the given length,
+     * using the same rule as BitWriter.capacity so a TEDS that encodes always
+     * fits the layout.
+     *
+     * @param bits length of the TEDS bit stream
+     * @return bytes from the start of the image up to the last one holding a
+     *         bit, at least one
+     */
+    public static int usedBytes(int bits) {
+        return Math.max(1, BitWriter.bytesFor(bits));
+    }
+
+    /**
+     * Gets the size of the image covering every bank.
+     *
+     * @return image size in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the banks the image covers.
+     *
+     * @return the banks, main memory first
+     */
+    public List<MemoryBank> banks() {
+        return Collections.unmodifiableList(banks);
+    }
+
+    /**
+     * Gets the pages of every bank holding the start of the image, in the
+     * order they should be programmed.
+     *
+     * @param length bytes from the start of the image, usedBytes for the TEDS
+     * @return the pages holding those bytes, the fewest that cover them
+     */
+    public List<Page> pages(int length) throws Exception {
+        if (length > size)
+            throw new Exception("The TEDS needs " + length + " bytes but the device only has " + size);
+
+        ArrayList<Page> pages = new ArrayList<>();
+        for (int i = 0; i < banks.size() && starts.get(i) < length; i++) {
+            MemoryBank bank = banks.get(i);
+            int page_length = TEDS_Writer.getPageLength(bank);
+            int end = Math.min(bank.getSize(), length - starts.get(i));// bytes of this bank that are needed
+            for (int page = 0; page * page_length < end; page++) {
+                int start = page * page_length;
+                pages.add(new Page(bank, page, start, starts.get(i) + start,
+                        Math.min(page_length, bank.getSize() - start)));
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Gets the number of pages in every bank the image covers.
+     *
+     * @return total pages
+     */
+    public int pageCount() {
+        int count = 0;
+        for (MemoryBank bank : banks) {
+            int page_length = TEDS_Writer.getPageLength(bank);
+            count += (bank.getSize() + page_length - 1) / page_length;
+        }
+        return count;
+    }
+
+    /**
+     * Describes the banks and how many of their pages the TEDS uses.
+     *
+     * @param length bytes of the image in use
+     * @return one line per bank
+     */
+    public String describe(int length) throws Exception {
+        StringBuilder description = new StringBuilder();
+        List<Page> used = pages(length);
+        for (MemoryBank bank : banks) {
+            int page_length = TEDS_Writer.getPageLength(bank);
+            int count = 0;
+            for (Page page : used)
+                if (page.bank == bank)
+                    count++;
+            description.append(String.format("%-24s %5d bytes, %3d pages of %2d, %3d used\n",
+                    bank.getBankDescription(), bank.getSize(), (bank.getSize() + page_length - 1) / page_length,
+                    page_length, count));
+        }
+        return description.toString();
+    }
+}
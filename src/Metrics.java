@@ -0,0 +1,422 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Per-phase timings for every programmed unit.
+ *
+ * Each thread works for one station at a time, named after its adapter port.
+ * Timings recorded on a thread go into that station's latency histogram for the
+ * phase, and into the unit being programmed on the thread if there is one.
+ * Timings recorded between units, such as acquiring the adapter or searching
+ * the bus, are carried over to the next unit the thread starts and added to
+ * its total. When a unit is finished its timings are appended to the file set
+ * with teds.metrics, as CSV if the file name ends in .csv and as JSON lines
+ * otherwise.
+ *
+ * Histograms use buckets an eighth of a power of two wide, so percentiles are
+ * within about 12% and recording never allocates.
+ */
+public final class Metrics {
+    /**
+     * Phases of programming a unit
+     */
+    public enum Phase {
+        ACQUIRE, // waiting for exclusive use of the adapter
+        SEARCH, // searching the bus for devices
+        TEMPLATE, // reading the template
+        ENCODE, // encoding the unit's image
+        COMPARE, // reading a page to see if it needs writing
+        WRITE, // writing a page
+        VERIFY, // reading a page back after it was written
+        RETRY // a whole attempt at a unit after its first, at a slower speed if there is one
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Map<String, Station> stations = new ConcurrentSkipListMap<>();// stations by name
+    private static final ThreadLocal<Context> context = ThreadLocal.withInitial(Context::new);
+    private static PrintWriter export;// file finished units are written to
+    private static boolean csv;// true to write csv instead of json lines
+
+    private Metrics() {
+    }
+
+    /**
+     * Latency histogram with buckets an eighth of a power of two wide
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;// 8 buckets per power of two
+
+        private long[] counts = new long[(64 - SUB_BITS) << SUB_BITS];// samples in each bucket
+        private long count;// total samples
+        private long sum;// total nanoseconds
+        private long max;// largest sample
+
+        /**
+         * Adds a sample.
+         *
+         * @param nanos sample in nanoseconds
+         */
+        public synchronized void add(long nanos) {
+            nanos = Math.max(0, nanos);
+            counts[bucket(nanos)]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * Gets the bucket a sample goes in.
+         */
+        private static int bucket(long nanos) {
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            if (exponent < SUB_BITS)
+                return (int) nanos;
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((nanos >>> (exponent - SUB_BITS)) & 7);
+        }
+
+        /**
+         * Gets the middle of a bucket.
+         */
+        private static long value(int bucket) {
+            if (bucket < 1 << SUB_BITS)
+                return bucket;
+            int shift = (bucket >> SUB_BITS) - 1;
+            long lower = (long) ((1 << SUB_BITS) + (bucket & 7)) << shift;
+            return lower + (1L << shift) / 2;
+        }
+
+        /**
+         * Gets a percentile.
+         *
+         * @param percentile from 0 to 1
+         * @return the sample at the percentile in nanoseconds, 0 if there are no
+         *         samples
+         */
+        public synchronized long percentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank))
+                    return Math.min(value(i), max);
+            }
+            return 0;
+        }
+
+        public synchronized long count() {
+            return count;
+        }
+
+        public synchronized long sum() {
+            return sum;
+        }
+
+        public synchronized long max() {
+            return max;
+        }
+    }
+
+    /**
+     * Histograms and results of one station
+     */
+    public static class Station {
+        public final String name;// adapter port
+        public final Histogram[] phases = new Histogram[PHASES.length];// histogram of each phase
+        public final Histogram units = new Histogram();// total time of each unit
+        private int passed, failed;// units finished
+
+        private Station(String name) {
+            this.name = name;
+            for (int i = 0; i < phases.length; i++)
+                phases[i] = new Histogram();
+        }
+
+        public synchronized int passed() {
+            return passed;
+        }
+
+        public synchronized int failed() {
+            return failed;
+        }
+    }
+
+    /**
+     * What a thread is working on
+     */
+    private static class Context {
+        Station station = station("main");// station the thread works for
+        long[] pending = new long[PHASES.length];// nanoseconds recorded since the last unit
+        long[] unit;// nanoseconds of the current unit, null between units
+        int retries;// retries of the current unit
+        boolean retrying;// true while the current unit is being retried
+        String rom;// rom id of the current unit
+        long start;// System.nanoTime the current unit started
+    }
+
+    /**
+     * Gets a station, creating it the first time it is used.
+     *
+     * @param name adapter port
+     * @return the station
+     */
+    public static Station station(String name) {
+        return stations.computeIfAbsent(name, Station::new);
+    }
+
+    /**
+     * Sets the station the current thread works for.
+     *
+     * @param name adapter port
+     */
+    public static void setStation(String name) {
+        context.get().station = station(name);
+    }
+
+    /**
+     * Records the time since a phase started.
+     *
+     * @param phase phase that finished
+     * @param start System.nanoTime when it started
+     */
+    public static void time(Phase phase, long start) {
+        record(phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Records a phase's time.
+     *
+     * @param phase phase that finished
+     * @param nanos time it took
+     */
+    public static void record(Phase phase, long nanos) {
+        Context ctx = context.get();
+        ctx.station.phases[phase.ordinal()].add(nanos);
+        if (ctx.retrying && phase != Phase.RETRY)
+            return;// counted in the unit as part of the retry
+        (ctx.unit != null ? ctx.unit : ctx.pending)[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Starts another attempt at the unit on the current thread. Phases recorded
+     * during the attempt still go into the station's histograms, but only the
+     * attempt as a whole counts towards the unit, as RETRY.
+     */
+    public static void beginRetry() {
+        Context ctx = context.get();
+        if (ctx.unit == null)
+            return;
+        ctx.retrying = true;
+        ctx.retries++;
+    }
+
+    /**
+     * Finishes an attempt started with beginRetry.
+     *
+     * @param start System.nanoTime when the attempt started
+     */
+    public static void endRetry(long start) {
+        Context ctx = context.get();
+        if (!ctx.retrying)
+            return;
+        ctx.retrying = false;
+        time(Phase.RETRY, start);
+    }
+
+    /**
+     * Starts timing a unit on the current thread. Anything recorded since the
+     * last unit is counted towards this one, in its phases and in its total,
+     * so a unit's phases never add up to more than its total.
+     *
+     * @param rom ROM ID of the unit
+     */
+    public static void beginUnit(String rom) {
+        Context ctx = context.get();
+        long carried = 0;// nanoseconds recorded before the unit started
+        for (long nanos : ctx.pending)
+            carried += nanos;
+        ctx.unit = ctx.pending;
+        ctx.pending = new long[PHASES.length];
+        ctx.retries = 0;
+        ctx.retrying = false;
+        ctx.rom = rom;
+        ctx.start = System.nanoTime() - carried;
+    }
+
+    /**
+     * Finishes the unit on the current thread and exports its timings.
+     *
+     * @param passed true if the unit was programmed and verified
+     * @return nanoseconds of each phase of the unit, or null if no unit was
+     *         started
+     */
+    public static long[] endUnit(boolean passed) {
+        Context ctx = context.get();
+        if (ctx.unit == null)
+            return null;
+        long total = System.nanoTime() - ctx.start;
+        Station station = ctx.station;
+        station.units.add(total);
+        synchronized (station) {
+            if (passed)
+                station.passed++;
+            else
+                station.failed++;
+        }
+        export(station.name, ctx.rom, passed, total, ctx.unit, ctx.retries);
+        long[] unit = ctx.unit;
+        ctx.unit = null;
+        return unit;
+    }
+
+    /**
+     * Appends a unit's timings to the export file, if there is one.
+     */
+    private static synchronized void export(String station, String rom, boolean passed, long total, long[] unit,
+            int retries) {
+        String file = System.getProperty("teds.metrics");
+        if (file == null)
+            return;
+
+        try {
+            if (export == null) {
+                csv = file.toLowerCase().endsWith(".csv");
+                boolean empty = !new File(file).exists() || new File(file).length() == 0;
+                export = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                        StandardCharsets.UTF_8));
+                if (csv && empty) {
+                    StringBuilder header = new StringBuilder("time,station,rom,pass,retries,total_ns");
+                    for (Phase phase : PHASES)
+                        header.append(',').append(phase.name().toLowerCase()).append("_ns");
+                    export.println(header);
+                }
+            }
+
+            StringBuilder line = new StringBuilder();
+            String time = new Date().toInstant().toString();
+            if (csv) {
+                line.append(time + "," + CSV.quote(station) + "," + rom + "," + passed + "," + retries + "," + total);
+                for (long nanos : unit)
+                    line.append(',').append(nanos);
+            } else {
+                line.append("{\"time\":" + TEDS_Daemon.quote(time) + ",\"station\":" + TEDS_Daemon.quote(station)
+                        + ",\"rom\":" + TEDS_Daemon.quote(rom) + ",\"pass\":" + passed + ",\"retries\":" + retries
+                        + ",\"total_ns\":" + total + ",\"phases\":{");
+                for (int i = 0; i < unit.length; i++)
+                    line.append(i == 0 ? "" : ",").append("\"" + PHASES[i].name().toLowerCase() + "\":" + unit[i]);
+                line.append("}}");
+            }
+            export.println(line);
+            export.flush();
+        } catch (IOException e) {
+            System.out.println("Couldn't write metrics to " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Prints the p50 and p99 of each phase for every station.
+     */
+    public static void printSummary() {
+        for (Station station : stations.values()) {
+            if (station.units.count() == 0)
+                continue;
+            System.out.println("\n" + station.name + ": " + station.passed() + " passed, " + station.failed()
+                    + " failed, " + String.format("%.0f", 3600e9 / Math.max(1, station.units.percentile(0.5)))
+                    + " units/hour at p50");
+            System.out.println(String.format("%12s %8s %10s %10s %10s", "Phase", "Count", "p50 ms", "p99 ms",
+                    "Total ms"));
+            for (int i = 0; i < PHASES.length; i++)
+                printHistogram(PHASES[i].name().toLowerCase(), station.phases[i]);
+            printHistogram("unit", station.units);
+        }
+    }
+
+    /**
+     * Prints a line of the summary.
+     */
+    private static void printHistogram(String name, Histogram histogram) {
+        if (histogram.count() > 0)
+            System.out.println(String.format("%12s %8d %10.2f %10.2f %10.1f", name, histogram.count(),
+                    histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6, histogram.sum() / 1e6));
+    }
+
+    /**
+     * Formats every histogram in the Prometheus text format.
+     *
+     * @return the metrics page
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE teds_phase_seconds summary\n");
+        for (Station station : stations.values())
+            for (int i = 0; i < PHASES.length; i++)
+                appendSummary(text, "teds_phase_seconds",
+                        "station=\"" + label(station.name) + "\",phase=\"" + PHASES[i].name().toLowerCase() + "\"",
+                        station.phases[i]);
+
+        text.append("# TYPE teds_unit_seconds summary\n");
+        for (Station station : stations.values())
+            appendSummary(text, "teds_unit_seconds", "station=\"" + label(station.name) + "\"", station.units);
+
+        text.append("# TYPE teds_units_total counter\n");
+        for (Station station : stations.values()) {
+            if (station.units.count() == 0)
+                continue;
+            text.append("teds_units_total{station=\"" + label(station.name) + "\",result=\"pass\"} "
+                    + station.passed() + "\n");
+            text.append("teds_units_total{station=\"" + label(station.name) + "\",result=\"fail\"} "
+                    + station.failed() + "\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends one summary to the metrics page.
+     */
+    private static void appendSummary(StringBuilder text, String name, String labels, Histogram histogram) {
+        if (histogram.count() == 0)
+            return;
+        for (double quantile : new double[] { 0.5, 0.99 })
+            text.append(name + "{" + labels + ",quantile=\"" + quantile + "\"} " + histogram.percentile(quantile) / 1e9
+                    + "\n");
+        text.append(name + "_sum{" + labels + "} " + histogram.sum() / 1e9 + "\n");
+        text.append(name + "_count{" + labels + "} " + histogram.count() + "\n");
+    }
+
+    /**
+     * Escapes a Prometheus label value.
+     */
+    private static String label(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Serves the metrics page at /metrics on a local port until the
+     * application closes.
+     *
+     * @param port port to listen on, only connections from this machine are
+     *             accepted
+     */
+    public static void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] page = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, page.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(page);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+    }
+}
@@ -0,0 +1,438 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dalsemi.onewire.*;
+import com.dalsemi.onewire.adapter.*;
+import com.dalsemi.onewire.container.*;
+import com.dalsemi.onewire.utils.*;
+
+/**
+ * In-memory 1-Wire adapter with a bus full of simulated EEPROMs.
+ *
+ * Lets the whole search, write and verify flow run without any hardware. Time
+ * on the bus is charged per byte and the calling thread is parked for it, so a
+ * run takes about as long as it would on a real adapter. Bit errors can be
+ * injected into bytes read and written to check that verification catches
+ * them.
+ *
+ * The simulator is used in place of real adapters when teds.sim is set to the
+ * number of devices on each bus. Everything else is set with system properties:
+ *
+ * <pre>
+ * teds.sim           devices on each simulated bus
+ * teds.sim.adapters  number of simulated adapters for the "p" mode, default 1
+ * teds.sim.size      main memory size in bytes, default 512
+ * teds.sim.otp       true for write-once EPROMs instead of EEPROMs, default false
+ * teds.sim.read_us   bus time per byte at regular speed, default 500
+ * teds.sim.write_us  programming time per byte written, default 160 (5ms a page)
+ * teds.sim.overdrive false if the adapter can't use overdrive, default true
+ * teds.sim.errors    chance of a flipped bit in each byte moved, default 0
+ * teds.sim.errors.overdrive  the same at overdrive, default teds.sim.errors
+ * teds.sim.seed      seed for the injected errors, default 1
+ * </pre>
+ *
+ * Only the calls the tool makes are simulated. Raw bit and byte traffic is
+ * charged for but no device answers it, so the bus reads back as idle.
+ */
+public class SimulatedAdapter extends DSPortAdapter {
+    private static final int OVERDRIVE_FACTOR = 8;// overdrive is about 8 times regular speed
+    private static final int SEARCH_BYTES = 24;// 64 rom bits, 3 time slots each
+    private static final int SELECT_BYTES = 10;// reset, match rom and the rom id
+
+    private int number;// adapter number, used in port names and rom ids
+    private List<SimulatedContainer> devices = new CopyOnWriteArrayList<>();// devices on the bus
+    private HashMap<Long, SimulatedContainer> containers = new HashMap<>();// devices by rom id, kept after removal
+    private int search_index;// index of the next device the search finds
+    private SimulatedContainer found;// device found by the last search step
+
+    private long read_nanos = Long.getLong("teds.sim.read_us", 500) * 1000;// bus time per byte at regular speed
+    private long write_nanos = Long.getLong("teds.sim.write_us", 160) * 1000;// programming time per byte
+    private boolean overdrive = !"false".equals(System.getProperty("teds.sim.overdrive"));// adapter can overdrive
+    private double error_rate = Double.parseDouble(System.getProperty("teds.sim.errors", "0"));// bit errors per byte
+    private double overdrive_error_rate = Double.parseDouble(System.getProperty("teds.sim.errors.overdrive",
+            String.valueOf(error_rate)));// bit errors per byte at overdrive
+    private Random random = new Random(Long.getLong("teds.sim.seed", 1));// source of injected errors
+
+    private int speed = SPEED_REGULAR;// current bus speed
+    private long busy_until;// System.nanoTime the bus is busy until
+    private long bus_nanos;// total time charged on the bus
+    private Thread owner;// thread with exclusive use of the adapter
+
+    /**
+     * Creates an adapter with the number of devices and memory size set in the
+     * system properties.
+     *
+     * @param number adapter number, devices on different adapters get different
+     *               rom ids
+     */
+    public SimulatedAdapter(int number) {
+        this(number, Integer.getInteger("teds.sim", 1), Integer.getInteger("teds.sim.size", 512),
+                Boolean.getBoolean("teds.sim.otp"));
+    }
+
+    /**
+     * @param number  adapter number, devices on different adapters get different
+     *                rom ids
+     * @param count   number of devices on the bus
+     * @param size    main memory size of each device in bytes
+     * @param otp     true for write-once EPROMs instead of EEPROMs
+     */
+    public SimulatedAdapter(int number, int count, int size, boolean otp) {
+        this.number = number;
+        for (int i = 0; i < count; i++)
+            attach(new SimulatedContainer(this, romID(otp ? 0x0B : 0x23, ((long) number << 24) | (i + 1)), size,
+                    otp));
+    }
+
+    /**
+     * Checks if the simulator should be used instead of real adapters.
+     *
+     * @return true if teds.sim is set
+     */
+    public static boolean enabled() {
+        return System.getProperty("teds.sim") != null;
+    }
+
+    /**
+     * Creates the simulated adapters for the "p" mode.
+     *
+     * @return teds.sim.adapters adapters
+     */
+    public static ArrayList<DSPortAdapter> all() {
+        ArrayList<DSPortAdapter> adapters = new ArrayList<>();
+        for (int i = 0; i < Integer.getInteger("teds.sim.adapters", 1); i++)
+            adapters.add(new SimulatedAdapter(i));
+        return adapters;
+    }
+
+    /**
+     * Builds a rom id with a valid CRC.
+     *
+     * @param family family code
+     * @param serial 48 bit serial number
+     * @return the rom id as a long
+     */
+    private static long romID(int family, long serial) {
+        byte[] address = new byte[8];
+        address[0] = (byte) family;
+        for (int i = 1; i < 7; i++)
+            address[i] = (byte) (serial >>> ((i - 1) * 8));
+        address[7] = (byte) CRC8.compute(address, 0, 7);
+        return Address.toLong(address);
+    }
+
+    /**
+     * Connects a device to the bus.
+     *
+     * @param device device to connect
+     */
+    public synchronized void attach(SimulatedContainer device) {
+        containers.put(device.getAddressAsLong(), device);
+        if (!devices.contains(device))
+            devices.add(device);
+    }
+
+    /**
+     * Disconnects a device from the bus. Its memory is kept so it can be
+     * attached again.
+     *
+     * @param device device to disconnect
+     */
+    public void detach(SimulatedContainer device) {
+        devices.remove(device);
+    }
+
+    /**
+     * Gets the devices on the bus.
+     *
+     * @return the connected devices
+     */
+    public List<SimulatedContainer> getDevices() {
+        return devices;
+    }
+
+    /**
+     * Changes the time charged for each byte.
+     *
+     * @param read_us  bus time per byte at regular speed in microseconds
+     * @param write_us programming time per byte written in microseconds
+     */
+    public void setLatency(long read_us, long write_us) {
+        read_nanos = read_us * 1000;
+        write_nanos = write_us * 1000;
+    }
+
+    /**
+     * Gets the total time charged on the bus.
+     *
+     * @return nanoseconds of simulated bus time
+     */
+    public long getBusNanos() {
+        return bus_nanos;
+    }
+
+    /**
+     * Charges bus time for bytes moved at the current speed.
+     *
+     * @param bytes number of bytes moved
+     */
+    void transfer(int bytes) {
+        delay(bytes * read_nanos / (speed == SPEED_OVERDRIVE ? OVERDRIVE_FACTOR : 1));
+    }
+
+    /**
+     * Charges programming time for bytes written. Programming doesn't get any
+     * faster at overdrive.
+     *
+     * @param bytes number of bytes written
+     */
+    void program(int bytes) {
+        transfer(bytes);
+        delay(bytes * write_nanos);
+    }
+
+    /**
+     * Parks the thread until the bus time charged has passed. Short delays are
+     * added up and slept together, since parking for a few microseconds at a
+     * time would take far longer than asked.
+     *
+     * @param nanos bus time to charge
+     */
+    private void delay(long nanos) {
+        bus_nanos += nanos;
+        long now = System.nanoTime();
+        busy_until = Math.max(busy_until, now) + nanos;
+        while (busy_until - now > 1000000) {
+            LockSupport.parkNanos(busy_until - now);
+            now = System.nanoTime();
+        }
+    }
+
+    /**
+     * Passes a byte over the bus, flipping a random bit at the configured error
+     * rate for the current speed.
+     *
+     * @param value byte to pass
+     * @return the byte as it arrived
+     */
+    byte corrupt(byte value) {
+        double rate = (speed == SPEED_OVERDRIVE) ? overdrive_error_rate : error_rate;
+        if (rate > 0 && random.nextDouble() < rate)
+            return (byte) (value ^ (1 << random.nextInt(8)));
+        return value;
+    }
+
+    /**
+     * Gets a connected device.
+     *
+     * @param address rom id
+     * @return the device, or null if it isn't on the bus
+     */
+    private SimulatedContainer device(long address) {
+        for (SimulatedContainer device : devices)
+            if (device.getAddressAsLong() == address)
+                return device;
+        return null;
+    }
+
+    @Override
+    public String getAdapterName() {
+        return "{SIMULATED}";
+    }
+
+    @Override
+    public String getPortTypeDescription() {
+        return "In-memory simulated bus";
+    }
+
+    @Override
+    public String getClassVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public Enumeration getPortNames() {
+        return new Vector<>(Arrays.asList(getPortName())).elements();
+    }
+
+    @Override
+    public boolean selectPort(String port) {
+        return port.equals(getPortName());
+    }
+
+    @Override
+    public void freePort() {
+    }
+
+    @Override
+    public String getPortName() {
+        return "SIM" + number;
+    }
+
+    @Override
+    public boolean adapterDetected() {
+        return true;
+    }
+
+    @Override
+    public boolean canOverdrive() {
+        return overdrive;
+    }
+
+    @Override
+    public boolean canProgram() {
+        return true;
+    }
+
+    @Override
+    public void setSpeed(int speed) throws OneWireException {
+        if (speed != SPEED_REGULAR && (speed != SPEED_OVERDRIVE || !overdrive))
+            throw new OneWireIOException("Speed " + speed + " isn't supported by the simulated adapter");
+        this.speed = speed;
+    }
+
+    @Override
+    public int getSpeed() {
+        return speed;
+    }
+
+    @Override
+    public boolean findFirstDevice() {
+        search_index = 0;
+        return findNextDevice();
+    }
+
+    @Override
+    public boolean findNextDevice() {
+        while (search_index < devices.size()) {
+            SimulatedContainer device = devices.get(search_index++);
+            transfer(SEARCH_BYTES);
+            if (isValidFamily(device.getAddress())) {
+                found = device;
+                return true;
+            }
+        }
+        found = null;
+        return false;
+    }
+
+    @Override
+    public void getAddress(byte[] address) {
+        if (found != null)
+            System.arraycopy(found.getAddress(), 0, address, 0, 8);
+    }
+
+    @Override
+    public synchronized OneWireContainer getDeviceContainer(byte[] address) {
+        SimulatedContainer device = containers.get(Address.toLong(address));
+        return device != null ? device : super.getDeviceContainer(address);
+    }
+
+    @Override
+    public OneWireContainer getDeviceContainer(long address) {
+        return getDeviceContainer(Address.toByteArray(address));
+    }
+
+    @Override
+    public OneWireContainer getDeviceContainer(String address) {
+        return getDeviceContainer(Address.toByteArray(address));
+    }
+
+    @Override
+    public boolean isPresent(byte[] address) {
+        transfer(SELECT_BYTES);
+        return device(Address.toLong(address)) != null;
+    }
+
+    @Override
+    public boolean select(byte[] address) {
+        return isPresent(address);
+    }
+
+    @Override
+    public void setSearchOnlyAlarmingDevices() {
+    }
+
+    @Override
+    public void setNoResetSearch() {
+    }
+
+    @Override
+    public void setSearchAllDevices() {
+    }
+
+    @Override
+    public synchronized boolean beginExclusive(boolean blocking) throws OneWireException {
+        while (owner != null && owner != Thread.currentThread()) {
+            if (!blocking)
+                return false;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new OneWireException("Interrupted waiting for the simulated adapter");
+            }
+        }
+        owner = Thread.currentThread();
+        return true;
+    }
+
+    @Override
+    public synchronized void endExclusive() {
+        if (owner == Thread.currentThread()) {
+            owner = null;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void putBit(boolean bit) {
+        transfer(1);
+    }
+
+    @Override
+    public boolean getBit() {
+        transfer(1);
+        return true;
+    }
+
+    @Override
+    public void putByte(int value) {
+        transfer(1);
+    }
+
+    @Override
+    public int getByte() {
+        transfer(1);
+        return 0xFF;
+    }
+
+    @Override
+    public byte[] getBlock(int length) {
+        byte[] block = new byte[length];
+        getBlock(block, 0, length);
+        return block;
+    }
+
+    @Override
+    public void getBlock(byte[] block, int length) {
+        getBlock(block, 0, length);
+    }
+
+    @Override
+    public void getBlock(byte[] block, int offset, int length) {
+        transfer(length);
+        Arrays.fill(block, offset, offset + length, (byte) 0xFF);
+    }
+
+    @Override
+    public void dataBlock(byte[] block, int offset, int length) {
+        getBlock(block, offset, length);
+    }
+
+    @Override
+    public int reset() {
+        transfer(1);
+        return devices.isEmpty() ? RESET_NOPRESENCE : RESET_PRESENCE;
+    }
+}
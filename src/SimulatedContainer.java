@@ -0,0 +1,82 @@
+import java.util.*;
+
+import com.dalsemi.onewire.*;
+import com.dalsemi.onewire.adapter.*;
+import com.dalsemi.onewire.container.*;
+
+/**
+ * A simulated EEPROM or EPROM on a SimulatedAdapter's bus.
+ *
+ * Looks like a DS2433 4K EEPROM, or a DS2505 add-only EPROM when write-once,
+ * with a main memory bank of any size. Setting teds.sim.banks adds more banks
+ * of the same size after it. New devices are blank, all 0xFF.
+ */
+public class SimulatedContainer extends OneWireContainer {
+    private ArrayList<MemoryBank> banks = new ArrayList<>();// main memory followed by any extra banks
+    private SimulatedMemoryBank bank;// main memory
+    private boolean otp;// true for a write-once EPROM
+
+    /**
+     * @param adapter adapter the device is on
+     * @param address rom id
+     * @param size    main memory size in bytes
+     * @param otp     true for a write-once EPROM
+     */
+    public SimulatedContainer(SimulatedAdapter adapter, long address, int size, boolean otp) {
+        super(adapter, address);
+        this.otp = otp;
+        bank = new SimulatedMemoryBank(this, "Main Memory", size, otp);
+        banks.add(bank);
+        for (int i = 1; i < Integer.getInteger("teds.sim.banks", 1); i++)
+            banks.add(new SimulatedMemoryBank(this, "Memory Bank " + i, size, otp));
+    }
+
+    /**
+     * Gets the main memory bank.
+     *
+     * @return the first bank
+     */
+    public SimulatedMemoryBank getBank() {
+        return bank;
+    }
+
+    @Override
+    public String getName() {
+        return otp ? "DS2505" : "DS2433";
+    }
+
+    @Override
+    public String getAlternateNames() {
+        return otp ? "DS1985 (simulated)" : "DS1973 (simulated)";
+    }
+
+    @Override
+    public String getDescription() {
+        return otp ? "Simulated " + bank.getSize() * 8 + " bit add-only EPROM"
+                : "Simulated " + bank.getSize() * 8 + " bit EEPROM";
+    }
+
+    @Override
+    public int getMaxSpeed() {
+        return DSPortAdapter.SPEED_OVERDRIVE;
+    }
+
+    @Override
+    public Enumeration getMemoryBanks() {
+        return new Vector<>(banks).elements();
+    }
+
+    /**
+     * Puts the bus at this device's speed, falling back to regular speed if the
+     * adapter can't overdrive and fall back is allowed.
+     */
+    @Override
+    public void doSpeed() throws OneWireException {
+        if (speed == DSPortAdapter.SPEED_OVERDRIVE && !adapter.canOverdrive()) {
+            if (!speedFallBackOK)
+                throw new OneWireIOException("The adapter can't overdrive " + getAddressAsString());
+            speed = DSPortAdapter.SPEED_REGULAR;
+        }
+        adapter.setSpeed(speed);
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.*;
+
+import com.dalsemi.onewire.*;
+import com.dalsemi.onewire.adapter.*;
+import com.dalsemi.onewire.container.*;
+
+/**
+ * Main memory of a simulated device, in 32 byte pages.
+ *
+ * Every call selects the device and charges the bus time a real device would
+ * take, unless it continues a read. Bytes read and written can pick up
+ * injected bit errors: a plain read returns the bad data, a read with CRC
+ * fails the way a real CRC check would, and a bad write leaves the bad byte
+ * in memory for verification to find. Write-once memory can only clear bits,
+ * as on an EPROM. Packet reads and writes aren't simulated.
+ */
+public class SimulatedMemoryBank implements PagedMemoryBank {
+    private static final int PAGE_LENGTH = 32;// bytes per page
+    private static final int COMMAND_BYTES = 3;// command and two address bytes
+    private static final int CRC_BYTES = 2;// crc16 after each page
+
+    private SimulatedContainer device;// device the memory is on
+    private String description;// name of the bank
+    private byte[] memory;// contents
+    private boolean otp;// true if bits can only be cleared
+
+    /**
+     * @param device      device the memory is on
+     * @param description name of the bank
+     * @param size        size in bytes
+     * @param otp         true if bits can only be cleared
+     */
+    public SimulatedMemoryBank(SimulatedContainer device, String description, int size, boolean otp) {
+        this.device = device;
+        this.description = description;
+        this.otp = otp;
+        memory = new byte[size];
+        Arrays.fill(memory, (byte) 0xFF);
+    }
+
+    /**
+     * Gets the contents without charging any bus time.
+     *
+     * @return a copy of the memory
+     */
+    public synchronized byte[] contents() {
+        return memory.clone();
+    }
+
+    /**
+     * Selects the device at its speed and charges for the command.
+     */
+    private SimulatedAdapter select() throws OneWireException {
+        SimulatedAdapter adapter = (SimulatedAdapter) device.getAdapter();
+        device.doSpeed();
+        if (!adapter.isPresent(device.getAddress()))
+            throw new OneWireIOException("Device not present on 1-Wire Network");
+        adapter.transfer(COMMAND_BYTES);
+        return adapter;
+    }
+
+    /**
+     * Checks a range lies inside the bank.
+     */
+    private void checkRange(int start, int length) throws OneWireException {
+        if (start < 0 || length < 0 || start + length > memory.length)
+            throw new OneWireException("Read/write exceeds memory bank end");
+    }
+
+    @Override
+    public String getBankDescription() {
+        return description;
+    }
+
+    @Override
+    public boolean isGeneralPurposeMemory() {
+        return true;
+    }
+
+    @Override
+    public int getSize() {
+        return memory.length;
+    }
+
+    @Override
+    public boolean isReadWrite() {
+        return !otp;
+    }
+
+    @Override
+    public boolean isWriteOnce() {
+        return otp;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public boolean isNonVolatile() {
+        return true;
+    }
+
+    @Override
+    public boolean needsProgramPulse() {
+        return otp;
+    }
+
+    @Override
+    public boolean needsPowerDelivery() {
+        return false;
+    }
+
+    @Override
+    public int getStartPhysicalAddress() {
+        return 0;
+    }
+
+    @Override
+    public void setWriteVerification(boolean verify) {
+    }
+
+    @Override
+    public synchronized void read(int start, boolean read_continue, byte[] buf, int offset, int length)
+            throws OneWireException {
+        checkRange(start, length);
+        SimulatedAdapter adapter = read_continue ? (SimulatedAdapter) device.getAdapter() : select();
+        adapter.transfer(length);
+        for (int i = 0; i < length; i++)
+            buf[offset + i] = adapter.corrupt(memory[start + i]);
+    }
+
+    @Override
+    public synchronized void write(int start, byte[] buf, int offset, int length) throws OneWireException {
+        checkRange(start, length);
+        if (otp)
+            for (int i = 0; i < length; i++)
+                if ((memory[start + i] & buf[offset + i]) != buf[offset + i])
+                    throw new OneWireException("Can't set a cleared bit at address " + (start + i)
+                            + " of write-once memory");
+
+        SimulatedAdapter adapter = select();
+        adapter.program(length);
+        for (int i = 0; i < length; i++) {
+            byte value = adapter.corrupt(buf[offset + i]);
+            memory[start + i] = otp ? (byte) (memory[start + i] & value) : value;
+        }
+    }
+
+    @Override
+    public int getNumberPages() {
+        return (memory.length + PAGE_LENGTH - 1) / PAGE_LENGTH;
+    }
+
+    @Override
+    public int getPageLength() {
+        return PAGE_LENGTH;
+    }
+
+    @Override
+    public int getMaxPacketDataLength() {
+        return PAGE_LENGTH - 3;
+    }
+
+    @Override
+    public boolean hasPageAutoCRC() {
+        return otp;
+    }
+
+    @Override
+    @Deprecated
+    public boolean haveExtraInfo() {
+        return false;
+    }
+
+    @Override
+    public boolean hasExtraInfo() {
+        return false;
+    }
+
+    @Override
+    public int getExtraInfoLength() {
+        return 0;
+    }
+
+    @Override
+    public String getExtraInfoDescription() {
+        return null;
+    }
+
+    @Override
+    public void readPage(int page, boolean read_continue, byte[] buf, int offset) throws OneWireException {
+        read(page * PAGE_LENGTH, read_continue, buf, offset, Math.min(PAGE_LENGTH, memory.length - page * PAGE_LENGTH));
+    }
+
+    @Override
+    public void readPage(int page, boolean read_continue, byte[] buf, int offset, byte[] extra_info)
+            throws OneWireException {
+        throw new OneWireException("Read extra information not supported on this memory bank");
+    }
+
+    @Override
+    public synchronized void readPageCRC(int page, boolean read_continue, byte[] buf, int offset)
+            throws OneWireException {
+        if (!otp)
+            throw new OneWireException("Read page with CRC not supported by this memory bank");
+
+        int start = page * PAGE_LENGTH;
+        int length = Math.min(PAGE_LENGTH, memory.length - start);
+        checkRange(start, length);
+        SimulatedAdapter adapter = read_continue ? (SimulatedAdapter) device.getAdapter() : select();
+        adapter.transfer(length + CRC_BYTES);
+        for (int i = 0; i < length; i++) {
+            buf[offset + i] = adapter.corrupt(memory[start + i]);
+            if (buf[offset + i] != memory[start + i])
+                throw new OneWireIOException("Invalid CRC16 read from device");
+        }
+    }
+
+    @Override
+    public void readPageCRC(int page, boolean read_continue, byte[] buf, int offset, byte[] extra_info)
+            throws OneWireException {
+        throw new OneWireException("Read extra information not supported on this memory bank");
+    }
+
+    @Override
+    public int readPagePacket(int page, boolean read_continue, byte[] buf, int offset) throws OneWireException {
+        throw new OneWireException("Packets aren't supported by the simulated memory bank");
+    }
+
+    @Override
+    public int readPagePacket(int page, boolean read_continue, byte[] buf, int offset, byte[] extra_info)
+            throws OneWireException {
+        throw new OneWireException("Packets aren't supported by the simulated memory bank");
+    }
+
+    @Override
+    public void writePagePacket(int page, byte[] buf, int offset, int length) throws OneWireException {
+        throw new OneWireException("Packets aren't supported by the simulated memory bank");
+    }
+}
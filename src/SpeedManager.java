@@ -0,0 +1,186 @@
+import java.util.*;
+
+import com.dalsemi.onewire.adapter.*;
+import com.dalsemi.onewire.container.*;
+
+/**
+ * Picks the bus speed for each device and falls back when a fixture is flaky.
+ *
+ * Every device family on an adapter starts at the fastest speed both support.
+ * When a unit fails to program or verify, its family drops one speed level, and
+ * later units of that family start at the slower speed. After
+ * teds.speed.probe units in a row pass at a slower speed (100 by default), one
+ * faster level is tried again, so a fixture that was only briefly flaky gets
+ * its speed back.
+ *
+ * <pre>
+ * levels, fastest first: overdrive, regular, flex
+ * </pre>
+ */
+public class SpeedManager {
+    private static final HashMap<String, SpeedManager> managers = new HashMap<>();// managers by adapter port
+
+    private DSPortAdapter adapter;// adapter the devices are on
+    private TreeMap<Integer, Family> families = new TreeMap<>();// state of each family code
+    private int probe = Integer.getInteger("teds.speed.probe", 100);// passes in a row before trying faster
+
+    /**
+     * Speed state of one device family
+     */
+    private static class Family {
+        int[] levels;// speeds to use, fastest first
+        int level;// index of the speed in use
+        int units, failures, fallbacks;// counts for the summary
+        int streak;// units passed in a row at this speed
+    }
+
+    private SpeedManager(DSPortAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Gets the manager for an adapter, so every station and job using the
+     * adapter shares what has been learned.
+     *
+     * @param adapter adapter the devices are on
+     * @return the adapter's manager
+     */
+    public static synchronized SpeedManager of(DSPortAdapter adapter) {
+        String port;
+        try {
+            port = adapter.getAdapterName() + " " + adapter.getPortName();
+        } catch (Exception e) {
+            port = adapter.getAdapterName();
+        }
+        return managers.computeIfAbsent(port, key -> new SpeedManager(adapter));
+    }
+
+    /**
+     * Gets the state of a device's family, working out the speeds it can use
+     * the first time the family is seen.
+     */
+    private Family family(OneWireContainer device) {
+        return families.computeIfAbsent(device.getAddress()[0] & 0xFF, code -> {
+            Family family = new Family();
+            ArrayList<Integer> levels = new ArrayList<>();
+            try {
+                if (adapter.canOverdrive() && device.getMaxSpeed() >= DSPortAdapter.SPEED_OVERDRIVE)
+                    levels.add(DSPortAdapter.SPEED_OVERDRIVE);
+                levels.add(DSPortAdapter.SPEED_REGULAR);
+                if (adapter.canFlex())
+                    levels.add(DSPortAdapter.SPEED_FLEX);
+            } catch (Exception e) {
+                levels.clear();
+                levels.add(DSPortAdapter.SPEED_REGULAR);// can't ask the adapter, stick to what every device supports
+            }
+            family.levels = levels.stream().mapToInt(Integer::intValue).toArray();
+            return family;
+        });
+    }
+
+    /**
+     * Sets the device to the speed its family is using. Nothing falls back
+     * quietly, a failure at this speed is reported through failed.
+     *
+     * @param device device about to be used
+     * @return the speed set
+     */
+    public synchronized int apply(OneWireContainer device) {
+        Family family = family(device);
+        int speed = family.levels[family.level];
+        device.setSpeed(speed, false);
+        return speed;
+    }
+
+    /**
+     * Records a unit that programmed and verified.
+     *
+     * @param device device that passed
+     */
+    public synchronized void passed(OneWireContainer device) {
+        Family family = family(device);
+        family.units++;
+        family.streak++;
+        if (family.level > 0 && family.streak >= probe) {
+            family.level--;
+            family.streak = 0;
+            System.out.println("Trying " + name(family.levels[family.level]) + " speed again");
+        }
+    }
+
+    /**
+     * Records a unit that failed and drops its family one speed level, if there
+     * is a slower one. The device is set to the new speed ready for a retry.
+     *
+     * @param device device that failed
+     * @return true if the speed was lowered
+     */
+    public synchronized boolean failed(OneWireContainer device) {
+        Family family = family(device);
+        family.units++;
+        family.failures++;
+        family.streak = 0;
+        boolean lowered = family.level < family.levels.length - 1;
+        if (lowered) {
+            family.level++;
+            family.fallbacks++;
+            System.out.println("Falling back to " + name(family.levels[family.level]) + " speed");
+        }
+        apply(device);
+        return lowered;
+    }
+
+    /**
+     * Gets the speed a device's family is using.
+     *
+     * @param device device
+     * @return the speed's name
+     */
+    public synchronized String speed(OneWireContainer device) {
+        Family family = family(device);
+        return name(family.levels[family.level]);
+    }
+
+    /**
+     * Describes the speed and failure rate of each family.
+     *
+     * @return a line for each family seen
+     */
+    public synchronized String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<Integer, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            summary.append(String.format("Family %02X: %s speed, %d of %d attempts failed, %d fallbacks\n",
+                    entry.getKey(), name(family.levels[family.level]), family.failures, family.units,
+                    family.fallbacks));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Prints the summary of every adapter's manager.
+     */
+    public static synchronized void printSummary() {
+        for (Map.Entry<String, SpeedManager> manager : managers.entrySet())
+            System.out.print(manager.getKey() + "\n" + manager.getValue().summary());
+    }
+
+    /**
+     * Gets the name of a speed.
+     *
+     * @param speed DSPortAdapter speed
+     * @return the name
+     */
+    public static String name(int speed) {
+        switch (speed) {
+            case DSPortAdapter.SPEED_OVERDRIVE:
+                return "overdrive";
+            case DSPortAdapter.SPEED_FLEX:
+                return "flex";
+            case DSPortAdapter.SPEED_HYPERDRIVE:
+                return "hyperdrive";
+            default:
+                return "regular";
+        }
+    }
+}
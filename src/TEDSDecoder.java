@@ -0,0 +1,188 @@
+import java.util.*;
+import java.util.stream.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Decodes EPROM images back into TEDS values.
+ *
+ * Given the template the image was written with, each field's bits are read
+ * back out and turned into the value that would be written in the spreadsheet,
+ * and the checksum of every page holding TEDS data is checked.
+ *
+ * The batch mode decodes a single dump, a directory of .bin and .hex dumps, or
+ * an image archive into one CSV file. Dumps are read a chunk at a time and each
+ * chunk is decoded in parallel, so memory use doesn't grow with the number of
+ * dumps.
+ */
+public class TEDSDecoder {
+    private static final int CHUNK = 4096;// dumps decoded together
+
+    private List<TEDSField> fields;// template the images were written with
+    private int bits;// number of data bits the template uses
+
+    /**
+     * @param fields compiled fields of the template the images were written with
+     */
+    public TEDSDecoder(List<TEDSField> fields) {
+        this.fields = fields;
+        for (TEDSField field : fields)
+            bits += field.length;
+    }
+
+    /**
+     * Decodes every field of an image.
+     *
+     * @param image image read from an EPROM
+     * @return the value of each field, in template order
+     */
+    public String[] decode(byte[] image) throws Exception {
+        if (bits > BitWriter.capacity(image))
+            throw new Exception("The image is only " + image.length + " bytes, the template needs " + bits + " bits");
+
+        String[] values = new String[fields.size()];
+        int bit = 0;
+        for (int i = 0; i < values.length; i++) {
+            TEDSField field = fields.get(i);
+            values[i] = field.decode(BitWriter.readBits(image, bit, field.length));
+            bit += field.length;
+        }
+        return values;
+    }
+
+    /**
+     * Finds the pages holding TEDS data whose checksum doesn't add up.
+     *
+     * @param image image read from an EPROM
+     * @return the bad page numbers, empty if every checksum is valid
+     */
+    public List<Integer> badPages(byte[] image) {
+        ArrayList<Integer> bad_pages = new ArrayList<>();
+        for (int page = 0; page <= Math.max(0, bits - 1) / BitWriter.PAGE_BITS; page++)
+            if (!BitWriter.checksumValid(image, page))
+                bad_pages.add(page);
+        return bad_pages;
+    }
+
+    /**
+     * Prints the decoded values of an image and whether its checksums are valid.
+     *
+     * @param image image read from an EPROM
+     */
+    public void print(byte[] image) throws Exception {
+        String[] values = decode(image);
+        System.out.println("Decoded Data:\n");
+        for (int i = 0; i < values.length; i++)
+            System.out.println(String.format("%30s", fields.get(i).name) + ":\t" + String.format("%-20s", values[i]));
+
+        List<Integer> bad_pages = badPages(image);
+        System.out.println(bad_pages.isEmpty() ? "\nChecksums Valid" : "\nBad checksum on pages " + bad_pages);
+    }
+
+    /**
+     * Decodes dumps into a CSV file with a row for each dump.
+     *
+     * @param input  a .bin or .hex dump, a directory of dumps, or an image archive
+     * @param output CSV file to write
+     * @return the number of dumps decoded
+     */
+    public int decodeAll(File input, File output) throws Exception {
+        int[] count = { 0 };// dumps decoded so far
+
+        try (BufferedWriter out = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            // header row
+            out.write("Name,Time,Checksum");
+            for (TEDSField field : fields)
+                out.write("," + CSV.quote(field.name));
+            out.newLine();
+
+            ArrayList<ImageArchive.Record> chunk = new ArrayList<>(CHUNK);
+            ImageArchive.RecordHandler handler = record -> {
+                chunk.add(record);
+                if (chunk.size() == CHUNK) {
+                    writeChunk(chunk, out);
+                    count[0] += chunk.size();
+                    chunk.clear();
+                }
+            };
+
+            if (input.isDirectory()) {
+                // read the dumps in name order so the csv comes out the same every time
+                try (Stream<Path> files = Files.list(input.toPath())) {
+                    Iterator<Path> it = files.filter(path -> isDump(path.toFile())).sorted().iterator();
+                    while (it.hasNext())
+                        handler.record(readDump(it.next().toFile()));
+                }
+            } else if (isDump(input))
+                handler.record(readDump(input));
+            else
+                ImageArchive.read(input, handler);
+
+            writeChunk(chunk, out);
+            count[0] += chunk.size();
+        }
+
+        return count[0];
+    }
+
+    /**
+     * Decodes a chunk of dumps in parallel and writes a CSV row for each, in
+     * order.
+     *
+     * @param chunk dumps to decode
+     * @param out   CSV file to write to
+     */
+    private void writeChunk(List<ImageArchive.Record> chunk, BufferedWriter out) throws IOException {
+        String[] rows = new String[chunk.size()];
+
+        IntStream.range(0, chunk.size()).parallel().forEach(i -> {
+            ImageArchive.Record record = chunk.get(i);
+            StringBuilder row = new StringBuilder(CSV.quote(record.name));
+            row.append(',').append(record.time == 0 ? "" : new Date(record.time).toInstant().toString());
+            try {
+                String[] values = decode(record.data);
+                List<Integer> bad_pages = badPages(record.data);
+                row.append(',').append(bad_pages.isEmpty() ? "OK" : CSV.quote("BAD " + bad_pages));
+                for (String value : values)
+                    row.append(',').append(CSV.quote(value));
+            } catch (Exception e) {
+                row.append(',').append(CSV.quote("ERROR " + e.getMessage()));
+            }
+            rows[i] = row.toString();
+        });
+
+        for (String row : rows) {
+            out.write(row);
+            out.newLine();
+        }
+    }
+
+    /**
+     * Checks if a file is a single dump rather than an archive. An archive is
+     * known by its contents first, since one written by the "a" mode can have
+     * any name, including one ending in .bin.
+     *
+     * @param file file to check
+     * @return true for .bin and .hex files that aren't archives
+     */
+    private static boolean isDump(File file) {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && (name.endsWith(".bin") || name.endsWith(".hex")) && !ImageArchive.isArchive(file);
+    }
+
+    /**
+     * Reads a single .bin or .hex dump.
+     *
+     * @param file dump to read
+     * @return a record named after the file
+     */
+    private static ImageArchive.Record readDump(File file) throws Exception {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (file.getName().toLowerCase().endsWith(".hex"))
+            data = BulkExporter.fromIntelHex(new String(data, StandardCharsets.US_ASCII));
+
+        String name = file.getName().substring(0, file.getName().lastIndexOf('.'));
+        return new ImageArchive.Record(name, 0, data);
+    }
+}
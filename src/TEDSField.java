@@ -0,0 +1,238 @@
+import java.math.*;
+import java.time.*;
+
+/**
+ * A single field of a TEDS template, compiled once from its spreadsheet row.
+ *
+ * The length, type and range are parsed when the field is compiled and the
+ * entry is encoded into the bits written to the EPROM right away, so encoding
+ * an image only has to copy each field's value into the buffer.
+ */
+public final class TEDSField {
+    /**
+     * TEDS data types
+     */
+    public enum Type {
+        UNINT, Chr5, DATE, ConRes, ConRelRes, Single
+    }
+
+    private static final long DATE_EPOCH = LocalDate.of(1998, 1, 1).toEpochDay();// TEDS dates count days from here
+
+    public final String name;// field name
+    public final int length;// number of bits
+    public final String range;// allowable range as written in the spreadsheet
+    public final Type type;// data type
+    public final String entry;// value as written in the spreadsheet
+    public final long value;// entry encoded into the field's bits
+
+    private final double min;// lowest allowed value, NaN if the range has none
+    private final double max;// highest allowed value, NaN if the range has none
+    private final double step;// ConRes step size
+    private final double rel_scale;// ConRelRes 1 / log10(1 + 2 * resolution)
+    private final char min_char, max_char;// Chr5 allowed letters, 0 if the range has none
+
+    private TEDSField(String name, int length, String range, Type type, String entry) throws Exception {
+        this.name = name;
+        this.length = length;
+        this.range = range;
+        this.type = type;
+        this.entry = entry;
+
+        // parse the limits out of the range string for the field's type
+        double min = Double.NaN, max = Double.NaN, step = 0, rel_scale = 0;
+        char min_char = 0, max_char = 0;
+        String trimmed = range.trim();
+        int to = trimmed.indexOf("to");
+        int dash = trimmed.indexOf('-', 1);// skip a leading minus sign
+
+        if ((type == Type.ConRes || type == Type.ConRelRes) && to != -1) {
+            // "min to max, step s" or "min to max, ±r%"
+            int comma = trimmed.indexOf(',');
+            min = Double.valueOf(trimmed.substring(0, to));
+            max = Double.valueOf(trimmed.substring(to + 2, comma == -1 ? trimmed.length() : comma));
+            if (type == Type.ConRes)
+                step = Double.valueOf(trimmed.substring(trimmed.indexOf("step") + 5));
+            else
+                rel_scale = 1 / Math.log10(1 + Double.valueOf(
+                        trimmed.substring(trimmed.indexOf("±") + 1, trimmed.indexOf("%"))) / 100 * 2);
+        } else if (type == Type.ConRes || type == Type.ConRelRes) {
+            throw new Exception("Unrecognized range " + range + " for " + name);
+        } else if (type == Type.Chr5 && trimmed.length() == 3 && dash == 1) {
+            // "A-Z"
+            min_char = trimmed.charAt(0);
+            max_char = trimmed.charAt(2);
+        } else if (type == Type.UNINT && dash != -1) {
+            // "min-max"
+            min = Double.valueOf(trimmed.substring(0, dash));
+            max = Double.valueOf(trimmed.substring(dash + 1));
+        }
+        this.min = min;
+        this.max = max;
+        this.step = step;
+        this.rel_scale = rel_scale;
+        this.min_char = min_char;
+        this.max_char = max_char;
+
+        if (!withinRange(entry))
+            throw new Exception(entry + " is outside of the range for " + name);
+        this.value = encode(entry);
+    }
+
+    /**
+     * Compiles a row of the TEDS_Data spreadsheet into a field.
+     *
+     * @param name   field name
+     * @param length number of bits
+     * @param range  allowable range
+     * @param type   data type
+     * @param entry  value to encode
+     * @return the compiled field
+     * @throws Exception if the type or range isn't recognized, the length is
+     *                   more than the 64 bits a field can hold, or the entry is
+     *                   outside of the range
+     */
+    public static TEDSField compile(String name, String length, String range, String type, String entry)
+            throws Exception {
+        Type field_type;
+        try {
+            field_type = Type.valueOf(type.replaceAll("\\s", ""));
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Unrecognized data type " + type);
+        }
+        int bits = (int) Double.parseDouble(length);
+        if (bits < 0 || bits > 64)
+            throw new Exception("Length " + length + " of " + name + " isn't from 0 to 64 bits");
+        return new TEDSField(name, bits, range, field_type, entry);
+    }
+
+    /**
+     * Makes a copy of this field with a different entry.
+     *
+     * @param entry value to encode
+     * @return the compiled field
+     */
+    public TEDSField withEntry(String entry) throws Exception {
+        return new TEDSField(name, length, range, type, entry);
+    }
+
+    /**
+     * Checks if the entry is within the field's range and fits in its bits.
+     *
+     * @param entry the value being evaluated
+     * @return true if the entry can be written to the field
+     */
+    public boolean withinRange(String entry) {
+        switch (type) {
+            case Chr5:
+                if (entry.length() * 5 > length)
+                    return false;
+                for (int i = 0; i < entry.length(); i++)
+                    if (min_char != 0 && (entry.charAt(i) < min_char || entry.charAt(i) > max_char))
+                        return false;
+                return true;
+            case DATE:
+                long days = LocalDate.parse(entry).toEpochDay() - DATE_EPOCH;
+                return days >= 0 && fits(days);
+            case Single:
+                return true;
+            default:
+                double double_entry = Double.parseDouble(entry);
+                if (!Double.isNaN(min) && (double_entry < min || double_entry > max))
+                    return false;
+                return double_entry >= 0 || type != Type.UNINT;
+        }
+    }
+
+    /**
+     * Checks if the value fits in the field's bits.
+     *
+     * @param value encoded value
+     * @return true if no bits above the field's length are set
+     */
+    public boolean fits(long value) {
+        return length == 64 || (value >>> length) == 0;
+    }
+
+    /**
+     * Encodes an entry into the field's bits.
+     *
+     * @param entry value to encode
+     * @return the encoded bits, lowest bit first
+     */
+    public long encode(String entry) throws Exception {
+        long bits;
+        switch (type) {
+            case UNINT:
+                // whole numbers are parsed exactly so fields wider than a double's 53 bits keep every bit
+                bits = entry.trim().matches("\\d+") ? Long.parseUnsignedLong(entry.trim())
+                        : (long) Double.parseDouble(entry);
+                break;
+            case Chr5:
+                bits = 0;
+                for (int i = 0; i < entry.length(); i++)
+                    bits += (long) (((byte) entry.charAt(i)) - 64) << 5 * i;
+                break;
+            case DATE:
+                bits = LocalDate.parse(entry).toEpochDay() - DATE_EPOCH;
+                break;
+            case ConRes:
+                bits = Math.round((Double.parseDouble(entry) - min) / step);
+                break;
+            case ConRelRes:
+                bits = Math.round(rel_scale * Math.log10(Double.parseDouble(entry) / min));
+                break;
+            case Single:
+                bits = Float.floatToIntBits((float) Double.parseDouble(entry)) & 0xFFFFFFFFL;
+                break;
+            default:
+                throw new Exception("Unrecognized data type " + type);
+        }
+
+        if (!fits(bits))
+            throw new Exception(entry + " is outside of the range for " + name);
+        return bits;
+    }
+
+    /**
+     * Decodes the field's bits back into an entry, the inverse of encode.
+     * Continuous values are given to 6 significant digits.
+     *
+     * @param bits encoded value, lowest bit first
+     * @return the entry as it would be written in the spreadsheet
+     */
+    public String decode(long bits) {
+        switch (type) {
+            case UNINT:
+                return Long.toUnsignedString(bits);
+            case Chr5:
+                StringBuilder chars = new StringBuilder();
+                for (int i = 0; i < length / 5; i++) {
+                    int c = (int) (bits >>> 5 * i) & 0x1F;
+                    if (c == 0)
+                        break;// unused characters are left as zero
+                    chars.append((char) (c + 64));
+                }
+                return chars.toString();
+            case DATE:
+                return LocalDate.ofEpochDay(DATE_EPOCH + bits).toString();
+            case ConRes:
+                return format(min + bits * step);
+            case ConRelRes:
+                return format(min * Math.pow(10, bits / rel_scale));
+            case Single:
+                return Float.toString(Float.intBitsToFloat((int) bits));
+            default:
+                return Long.toString(bits);
+        }
+    }
+
+    /**
+     * Formats a continuous value to 6 significant digits.
+     *
+     * @param value value to format
+     * @return the value without trailing zeros
+     */
+    private static String format(double value) {
+        return new BigDecimal(value).round(new MathContext(6)).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.*;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Benchmarks for the encode and I/O hot paths.
+ *
+ * Each benchmark is run for a warmup period and then timed one operation at a
+ * time for the measurement period. The table printed at the end gives the
+ * throughput, the latency percentiles, the bytes allocated per operation and
+ * the number of garbage collections during the measurement. Program and verify
+ * cycles are run against a simulated device, once with no bus latency to time
+ * the tool itself and once at regular speed timings.
+ *
+ * <pre>
+ * java -cp TEDS_Writer.jar TEDS_Benchmark [template] [filter]
+ *
+ * template         spreadsheet to benchmark with, default TEDS_Data.xlsx
+ * filter           only run benchmarks whose name contains this
+ * teds.bench.warmup  warmup time per benchmark in ms, default 1000
+ * teds.bench.time    measurement time per benchmark in ms, default 3000
+ * teds.bench.csv     file to also write the results to as CSV
+ * </pre>
+ */
+public class TEDS_Benchmark {
+    private static final int MAX_SAMPLES = 1 << 20;// latencies kept per benchmark
+    private static final int IMAGE_SIZE = 512;// bytes, the size of a DS2433
+
+    private long warmup_ms = Long.getLong("teds.bench.warmup", 1000);// warmup time per benchmark
+    private long time_ms = Long.getLong("teds.bench.time", 3000);// measurement time per benchmark
+    private ArrayList<String> results = new ArrayList<>();// csv row for each benchmark run
+
+    /**
+     * A single operation being benchmarked
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File template = new File(args.length > 0 ? args[0] : "TEDS_Data.xlsx");
+        String filter = args.length > 1 ? args[1] : "";
+        new TEDS_Benchmark().runAll(template, filter);
+    }
+
+    /**
+     * Runs every benchmark whose name contains the filter.
+     *
+     * @param template spreadsheet to benchmark with
+     * @param filter   part of the benchmark names to run
+     */
+    public void runAll(File template, String filter) throws Exception {
+        TEDS_Writer writer = new TEDS_Writer(template);
+        List<TEDSField> fields = writer.getFields();// also makes sure the template cache exists
+        byte[] image = writer.buildImage(IMAGE_SIZE);
+        byte[] buffer = image.clone();
+        ImagePatcher patcher = new ImagePatcher(fields, image);
+        TEDSDecoder decoder = new TEDSDecoder(fields);
+        long[] serial = { 0 };
+
+        System.out.println(String.format("%-24s %10s %12s %10s %10s %10s %10s %12s %5s", "Benchmark", "Ops",
+                "Ops/s", "Mean us", "p50 us", "p99 us", "Max us", "Bytes/op", "GCs"));
+
+        if ("getTEDSData.xlsx".contains(filter))
+            run("getTEDSData.xlsx", () -> {
+                for (String[] row : TEDS_Writer.readRows(template))
+                    TEDSField.compile(row[0], row[1], row[2], row[3], row[4]);
+            });
+        if ("getTEDSData.csv".contains(filter)) {
+            File csv = File.createTempFile("TEDS_Data", ".csv");
+            csv.deleteOnExit();
+            TemplateCSV.write(TEDS_Writer.readRows(template), csv);
+            run("getTEDSData.csv", () -> {
+                for (String[] row : TemplateCSV.readRows(csv))
+                    TEDSField.compile(row[0], row[1], row[2], row[3], row[4]);
+            });
+        }
+        if ("getTEDSData.cached".contains(filter))
+            run("getTEDSData.cached", () -> new TEDS_Writer(template).getTEDSData());
+        if ("formatData".contains(filter))
+            run("formatData", () -> {
+                writer.formatBuffer(buffer);
+                writer.formatData(buffer);
+            });
+        if ("BitWriter.encode".contains(filter))
+            run("BitWriter.encode", () -> BitWriter.encode(fields, buffer));
+        if ("serialImage".contains(filter))
+            run("serialImage", () -> patcher.serialImage(serial[0]++ & 0xFFFF));
+        if ("calculateChecksum".contains(filter))
+            run("calculateChecksum", () -> TEDS_Writer.calculateChecksum(buffer));
+        if ("bytesToHex".contains(filter))
+            run("bytesToHex", () -> TEDS_Writer.bytesToHex(image));
+        if ("decode".contains(filter))
+            run("decode", () -> decoder.decode(image));
+        if ("program.sim".contains(filter))
+            runProgram("program.sim", writer, patcher, 0, 0);
+        if ("program.sim.regular".contains(filter))
+            runProgram("program.sim.regular", writer, patcher, Long.getLong("teds.sim.read_us", 500),
+                    Long.getLong("teds.sim.write_us", 160));
+
+        String csv = System.getProperty("teds.bench.csv");
+        if (csv != null) {
+            results.add(0, "benchmark,ops,ops_per_s,mean_us,p50_us,p99_us,max_us,bytes_per_op,gcs");
+            Files.write(Paths.get(csv), results, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Runs full program and verify cycles against a simulated device. Each
+     * cycle writes a different serial number, so the pages holding it are
+     * written and read back every time.
+     *
+     * @param name     benchmark name
+     * @param writer   writer to program with
+     * @param patcher  patcher holding the base image
+     * @param read_us  bus time per byte
+     * @param write_us programming time per byte
+     */
+    private void runProgram(String name, TEDS_Writer writer, ImagePatcher patcher, long read_us, long write_us)
+            throws Exception {
+        SimulatedAdapter adapter = new SimulatedAdapter(0, 1, IMAGE_SIZE, false);
+        adapter.setLatency(read_us, write_us);
+        SimulatedContainer device = adapter.getDevices().get(0);
+        long[] serial = { 0 };
+
+        adapter.beginExclusive(true);
+        try {
+            run(name, () -> {
+                if (!writer.programTEDS(device, patcher.serialImage(serial[0]++ & 0xFFFF)))
+                    throw new Exception("Programming the simulated device failed");
+            });
+        } finally {
+            adapter.endExclusive();
+        }
+    }
+
+    /**
+     * Warms up and then measures an operation, and prints its results.
+     *
+     * @param name      benchmark name
+     * @param operation operation to run
+     */
+    private void run(String name, Operation operation) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread_id = Thread.currentThread().getId();
+        long[] latencies = new long[MAX_SAMPLES];
+        int ops = 0;
+
+        // the tool prints as it programs, keep that out of the results
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long end = System.nanoTime() + warmup_ms * 1000000;
+            while (System.nanoTime() < end)
+                operation.run();
+
+            long gcs = gcCount();
+            long allocated = threads.getThreadAllocatedBytes(thread_id);
+            long start = System.nanoTime();
+            end = start + time_ms * 1000000;
+            long now = start;
+            while (now < end && ops < MAX_SAMPLES) {
+                operation.run();
+                long after = System.nanoTime();
+                latencies[ops++] = after - now;
+                now = after;
+            }
+            long elapsed = now - start;
+            allocated = threads.getThreadAllocatedBytes(thread_id) - allocated;
+            gcs = gcCount() - gcs;
+
+            Arrays.sort(latencies, 0, ops);
+            double ops_per_s = ops * 1e9 / elapsed;
+            double mean_us = elapsed / 1e3 / ops;
+            double p50_us = latencies[ops / 2] / 1e3;
+            double p99_us = latencies[Math.min(ops - 1, (int) (ops * 0.99))] / 1e3;
+            double max_us = latencies[ops - 1] / 1e3;
+            long bytes_per_op = allocated / ops;
+
+            out.println(String.format("%-24s %10d %12.1f %10.2f %10.2f %10.2f %10.2f %12d %5d", name, ops, ops_per_s,
+                    mean_us, p50_us, p99_us, max_us, bytes_per_op, gcs));
+            results.add(String.format(Locale.ROOT, "%s,%d,%.1f,%.2f,%.2f,%.2f,%.2f,%d,%d", name, ops, ops_per_s,
+                    mean_us, p50_us, p99_us, max_us, bytes_per_op, gcs));
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Gets the number of garbage collections so far.
+     *
+     * @return total collections across every collector
+     */
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+import com.dalsemi.onewire.adapter.*;
+import com.dalsemi.onewire.container.*;
+
+/**
+ * Long running programming service.
+ *
+ * Keeps the adapter open and every template it has loaded in memory, and takes
+ * one job per line from stdin or from clients on a local socket. Each job gets a
+ * single line JSON response. Jobs are run one at a time. A loaded template is
+ * reloaded for the next job whenever its file is saved.
+ *
+ * <pre>
+ * write [template] [serial N]
+ *                    program every EPROM on the bus, template defaults to TEDS_Data.csv
+ *                    if it is newer than TEDS_Data.xlsx, otherwise TEDS_Data.xlsx,
+ *                    with serial numbers starting at N if given
+ * read               read back every EPROM on the bus
+ * reload             forget the loaded templates so they are read again
+ * status             adapter, loaded templates and number of jobs run
+ * quit               stop the service
+ * </pre>
+ */
+public class TEDS_Daemon {
+    private DSPortAdapter adapter;// adapter kept open between jobs
+    private HashMap<String, TEDS_Writer> templates = new HashMap<>();// loaded templates by file name
+    private HashMap<String, TemplateWatcher> watchers = new HashMap<>();// watchers of the loaded templates
+    private int jobs = 0;// number of jobs run
+    private volatile boolean running = true;// false once a quit job is received, read by every client thread
+
+    public TEDS_Daemon(DSPortAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Takes jobs from stdin and writes responses to the original stdout until a
+     * quit job is received or stdin is closed. The caller moves everything else
+     * the tool prints to stderr before the adapter is opened, so stdout only
+     * carries responses.
+     *
+     * @param responses the original stdout
+     */
+    public void serve(PrintStream responses) throws Exception {
+        try {
+            serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(responses, true));
+        } finally {
+            closeWatchers();
+        }
+    }
+
+    /**
+     * Takes jobs from clients on a local socket until a quit job is received.
+     *
+     * @param port port to listen on, only connections from this machine are
+     *             accepted
+     */
+    public void listen(int port) throws Exception {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        try {
+            System.out.println("Listening for jobs on port " + port);
+            while (running) {
+                Socket client = server.accept();
+                new Thread(() -> {
+                    try (Socket socket = client) {
+                        serve(new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                                new PrintWriter(socket.getOutputStream(), true));
+                        if (!running)
+                            server.close();// stop accepting once a client quits the service
+                    } catch (Exception e) {
+                        System.out.println("Exception in client: " + e);
+                    }
+                }).start();
+            }
+        } catch (SocketException e) {
+            if (running)
+                throw e;
+        } finally {
+            server.close();
+            closeWatchers();
+        }
+    }
+
+    /**
+     * Runs each job read from the input and writes its response.
+     *
+     * @param in  jobs, one per line
+     * @param out responses, one per line
+     */
+    public void serve(BufferedReader in, PrintWriter out) throws Exception {
+        String job;
+        while (running && (job = in.readLine()) != null) {
+            if (job.trim().length() > 0)
+                out.println(handle(job.trim()));
+        }
+    }
+
+    /**
+     * Runs a single job.
+     *
+     * @param job the job line
+     * @return the JSON response
+     */
+    public synchronized String handle(String job) {
+        String[] words = job.split("\\s+");
+        String command = words[0].toLowerCase();
+        long start_time = System.currentTimeMillis();
+
+        try {
+            String result;
+            if (command.equals("write")) {
+                String template = TEDS_Writer.defaultTemplate().getPath();
+                long serial = -1;
+                for (int i = 1; i < words.length; i++) {
+                    if (words[i].equalsIgnoreCase("serial") && i + 1 < words.length)
+                        serial = Long.parseLong(words[++i]);
+                    else
+                        template = words[i];
+                }
+                result = write(template, serial);
+            } else if (command.equals("read"))
+                result = read();
+            else if (command.equals("reload")) {
+                closeWatchers();
+                templates.clear();
+                result = "";
+            } else if (command.equals("status"))
+                result = ",\"adapter\":" + quote(adapter.getAdapterName() + " " + adapter.getPortName())
+                        + ",\"templates\":" + quote(String.join(";", templates.keySet())) + ",\"jobs\":" + jobs;
+            else if (command.equals("quit")) {
+                running = false;
+                result = "";
+            } else
+                throw new Exception("Unrecognized job " + words[0]);
+
+            jobs++;
+            return "{\"ok\":true,\"job\":" + quote(command) + ",\"ms\":" + (System.currentTimeMillis() - start_time)
+                    + result + "}";
+        } catch (Exception e) {
+            return "{\"ok\":false,\"job\":" + quote(command) + ",\"error\":" + quote(e.toString()) + "}";
+        }
+    }
+
+    /**
+     * Programs every EPROM on the bus with the template.
+     *
+     * @param template spreadsheet to program
+     * @param serial   serial number of the first device, or -1 to use the
+     *                 template's serial number
+     * @return the JSON fields describing the result
+     */
+    private String write(String template, long serial) throws Exception {
+        TEDS_Writer writer = templates.get(template);
+        if (writer == null) {
+            writer = new TEDS_Writer(new File(template));
+            writer.getTEDSData();// fail the job now if the template can't be read
+            templates.put(template, writer);
+            watchers.put(template, new TemplateWatcher(writer, new File(template)));
+        }
+
+        LinkedHashMap<String, Boolean> results = new LinkedHashMap<>();// pass/fail for each rom id
+        Metrics.setStation(adapter.getAdapterName() + " " + adapter.getPortName());
+        long acquire_time = System.nanoTime();
+        adapter.beginExclusive(true);
+        Metrics.time(Metrics.Phase.ACQUIRE, acquire_time);
+        writer.setNextSerial(serial);
+        try {
+            writer.programDevices(adapter, TEDS_Writer.findEPROMs(adapter), false, "", results);
+        } finally {
+            writer.setNextSerial(-1);
+            adapter.endExclusive();
+        }
+
+        StringBuilder devices = new StringBuilder();
+        for (Map.Entry<String, Boolean> result : results.entrySet()) {
+            devices.append(devices.length() == 0 ? "" : ",");
+            devices.append("{\"rom\":" + quote(result.getKey()) + ",\"pass\":" + result.getValue() + "}");
+        }
+        return ",\"template\":" + quote(template) + (serial < 0 ? "" : ",\"serial\":" + serial) + ",\"devices\":["
+                + devices + "]";
+    }
+
+    /**
+     * Reads back every EPROM on the bus.
+     *
+     * @return the JSON fields describing the result
+     */
+    private String read() throws Exception {
+        StringBuilder devices = new StringBuilder();
+
+        adapter.beginExclusive(true);
+        try {
+            for (OneWireContainer owd : TEDS_Writer.findEPROMs(adapter)) {
+                devices.append(devices.length() == 0 ? "" : ",");
+                devices.append("{\"rom\":" + quote(owd.getAddressAsString()) + ",\"data\":"
+                        + quote(TEDS_Writer.bytesToHex(TEDS_Writer.readBank(owd))) + "}");
+            }
+        } finally {
+            adapter.endExclusive();
+        }
+
+        return ",\"devices\":[" + devices + "]";
+    }
+
+    /**
+     * Stops watching every loaded template.
+     */
+    private synchronized void closeWatchers() {
+        for (TemplateWatcher watcher : watchers.values()) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.out.println("Exception in closing the template watcher: " + e);
+            }
+        }
+        watchers.clear();
+    }
+
+    /**
+     * Quotes a string for a JSON response.
+     *
+     * @param str string to quote
+     * @return the quoted and escaped string
+     */
+    public static String quote(String str) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < ' ')
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -1,14 +1,11 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.time.*;
 
 import com.dalsemi.onewire.*;
 import com.dalsemi.onewire.adapter.*;
 import com.dalsemi.onewire.container.*;
-import org.apache.poi.xssf.usermodel.*;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.openxml4j.opc.*;
 
 /**
  * TEDS Writer Tool
@@ -17,20 +14,107 @@ import org.apache.poi.openxml4j.opc.*;
  * @author Patrick Ogden
  */
 public class TEDS_Writer {
-    private HashMap<String, String[]> data_map = new HashMap<>();// map of data in the TEDS_Data spreadsheet
-    private ArrayList<String> map_keys = new ArrayList<>();// list of keys in the data map
-    private int index = 0;// current byte of buffer
-    private int sub_index = 0;// number of bits filled in byte
+    private ArrayList<TEDSField> fields = new ArrayList<>();// compiled fields of the TEDS_Data spreadsheet
+    private HashMap<Integer, byte[]> images = new HashMap<>();// encoded images by bank size
+    private HashMap<Integer, ImagePatcher> patchers = new HashMap<>();// per-unit image patchers by bank size
+    private long next_serial = -1;// next serial number to program, -1 to use the template's serial number
+    private File template_file = defaultTemplate();// spreadsheet or csv the TEDS data is read from
+    private String template_hash;// hash of the template the TEDS data was read from
+    private Ledger ledger;// record of every unit programmed, null if there isn't one
+    private boolean ledger_opened;// true once opening the ledger has been tried
+    private volatile CompletableFuture<Void> template_load;// template being read in the background, null if it isn't
+    private long template_nanos;// time spent reading the template that no unit has been charged for yet
+    private ImageArchive readback;// archive devices are read into, null to print them instead
+    private HexView readback_view;// hex listing of the devices read into the archive, null if there isn't one
+
+    private static final int PAGE_SIZE = BitWriter.PAGE_SIZE;// bytes per page, the first byte of each page is its checksum
+
+    /**
+     * Creates a writer for the given template without touching any adapter, for
+     * use by tools that manage the adapter themselves.
+     *
+     * @param template_file spreadsheet or csv the TEDS data is read from
+     */
+    public TEDS_Writer(File template_file) {
+        this.template_file = template_file;
+    }
 
     public TEDS_Writer(String[] args) throws Exception {
         try {
-            boolean eeprom_found = false;// boolean to track whether an eeprom was found
+            boolean read_mode = args.length > 0 && args[0].indexOf("r") != -1;// "r" reads instead of writing
+            boolean batch_mode = args.length > 0 && args[0].indexOf("b") != -1;// "b" handles every eeprom on the bus
+            boolean parallel_mode = args.length > 0 && args[0].indexOf("p") != -1;// "p" runs every adapter at once
+            boolean station_mode = args.length > 0 && args[0].indexOf("m") != -1;// "m" keeps handling new eeproms
+            boolean daemon_mode = args.length > 0 && args[0].indexOf("d") != -1;// "d" takes jobs from stdin or a socket
+            boolean serial_mode = args.length > 0 && args[0].indexOf("s") != -1;// "s" increments the serial number
+            boolean export_mode = args.length > 0 && args[0].indexOf("e") != -1;// "e" exports images from a csv
+            boolean decode_mode = args.length > 0 && args[0].indexOf("x") != -1;// "x" decodes dumps into a csv
+            boolean template_mode = args.length > 0 && args[0].indexOf("t") != -1;// "t" converts the template to csv
+            boolean archive_mode = args.length > 0 && args[0].indexOf("a") != -1;// "a" reads eeproms into an archive
+
+            // when jobs come from stdin, stdout only carries responses and everything else goes to stderr
+            PrintStream responses = System.out;
+            if (daemon_mode && args.length < 2)
+                System.setOut(System.err);
+
+            // if the user used the argument "t" then convert the spreadsheet into a csv template
+            if (template_mode) {
+                File spreadsheet = new File(args.length > 1 ? args[1] : "TEDS_Data.xlsx");
+                File csv = new File(args.length > 2 ? args[2] : "TEDS_Data.csv");
+                int count = TemplateCSV.export(spreadsheet, csv);
+                System.out.println("Wrote " + count + " fields from " + spreadsheet + " to " + csv);
+                System.exit(0);
+            }
+
+            // if the user used the argument "e" then export images for a lot without any adapter
+            if (export_mode) {
+                if (args.length < 3)
+                    throw new Exception("Usage: e <input.csv> <output> [bin|hex|archive] [image size]");
+                long start_time = System.currentTimeMillis();
+                int count = BulkExporter.export(this, new File(args[1]), new File(args[2]),
+                        args.length > 3 ? args[3] : "archive", args.length > 4 ? Integer.parseInt(args[4]) : 512);
+                System.out.println("Exported " + count + " images in " + (System.currentTimeMillis() - start_time)
+                        + "ms");
+                System.exit(0);
+            }
+
+            // if the user used the argument "x" then decode dumps without any adapter
+            if (decode_mode) {
+                if (args.length < 3)
+                    throw new Exception("Usage: x <dump|directory|archive> <output.csv>");
+                long start_time = System.currentTimeMillis();
+                int count = new TEDSDecoder(getFields()).decodeAll(new File(args[1]), new File(args[2]));
+                System.out.println("Decoded " + count + " images in " + (System.currentTimeMillis() - start_time)
+                        + "ms");
+                System.exit(0);
+            }
+
+            // if the user used the argument "a" then read every eeprom on the bus into an archive
+            if (archive_mode) {
+                if (args.length < 2)
+                    throw new Exception("Usage: a <archive> [hex view]");
+                openReadback(new File(args[1]), args.length > 2 ? new File(args[2]) : null);
+                read_mode = true;
+                batch_mode = !station_mode;
+            }
+
+            // read the template while the adapter is opened and searched, it's waited for when first needed
+            if (!read_mode && !daemon_mode)
+                loadTemplateAsync(serial_mode);
+
+            // if the user used the argument "p" then run a station on every adapter that is plugged in
+            if (parallel_mode) {
+                programAllAdapters(read_mode);
+                System.exit(0);
+            }
 
             // get the default adapter or throw an exception if it isn't plugged in
             DSPortAdapter adapter = null;
             try {
-                adapter = OneWireAccessProvider.getDefaultAdapter();
+                adapter = SimulatedAdapter.enabled() ? new SimulatedAdapter(0)
+                        : OneWireAccessProvider.getDefaultAdapter();
             } catch (Exception e) {
+                templateError();// report a bad template now too, rather than on the next launch
                 throw new Exception(
                         "\n\nAdapter not connected.\nConnect a 1-Wire adapter and relaunch the application.\n");
             }
@@ -45,7 +129,10 @@ public class TEDS_Writer {
             // }
 
             // get exclusive use of adapter
+            Metrics.setStation(adapter.getAdapterName() + " " + adapter.getPortName());
+            long acquire_time = System.nanoTime();
             adapter.beginExclusive(true);
+            Metrics.time(Metrics.Phase.ACQUIRE, acquire_time);
 
             // clear any previous search restrictions
             adapter.setSearchAllDevices();
@@ -53,63 +140,51 @@ public class TEDS_Writer {
             adapter.setSpeed(adapter.SPEED_REGULAR);
             System.out.println("==============================================\n");
 
-            // loop until an eeprom is found
-            while (!eeprom_found) {
-                // enumerate through all the iButtons found
-                for (Enumeration owd_enum = adapter.getAllDeviceContainers(); owd_enum.hasMoreElements();) {
-
-                    // get the next one wire device
-                    OneWireContainer owd = (OneWireContainer) owd_enum.nextElement();
-
-                    // if the device is an eprom
-                    if (owd.getDescription().indexOf("EPROM") != -1) {
-                        eeprom_found = true;
-                        System.out.println("==============================================");
-                        System.out.println("Device Name: " + owd.getName());
-                        System.out.println("Device Other Names: " + owd.getAlternateNames());
-                        System.out.println("Device Description: " + owd.getDescription());
-                        System.out.println("==============================================");
-
-                        // set owd to max possible speed with available adapter, allow fall back
-                        if (adapter.canOverdrive() && (owd.getMaxSpeed() == DSPortAdapter.SPEED_OVERDRIVE))
-                            owd.setSpeed(owd.getMaxSpeed(), true);
-
-                        // if the user didn't use the argument "r" when running the program then write to the eeprom
-                        if (args.length == 0 || (args[0].indexOf("r") == -1)) {
-
-                            // print the TEDS data in the spreadsheet
-                            printTEDSData();
-
-                            // promt the user to verify the data
-                            Scanner scanner = new Scanner(System.in); // create a scanner object
-                            String ans = ""; // user input
-                            System.out.println("============================");
-                            System.out.println("Does this look correct (Y/N)?");
-                            while (ans.length() == 0
-                                    || (ans.toLowerCase().charAt(0) != 'y' && ans.toLowerCase().charAt(0) != 'n'))
-                                ans = scanner.nextLine();
-                            scanner.close();
-
-                            // program and verify if the user chose yes
-                            if (ans.toLowerCase().charAt(0) == 'y') {
-                                clearEEPROM(owd);
-                                byte[] buffer = writeTEDS(owd);
-                                verifyTEDS(owd, buffer);
-                            } else
-                                System.out.println("Closing Application");
-                        } else {
-                            readEEPROM(owd); // display the contents of the eeprom
-                        }
-                    }
-                }
+            // if the user used the argument "b" then program every eeprom on the bus in one session
+            if (batch_mode) {
+                programAll(adapter, read_mode);
+            } else if (daemon_mode) {
+                // if the user used the argument "d" then keep the adapter open and take jobs
+                adapter.endExclusive();// each job takes exclusive use of the adapter itself
+                if (System.getProperty("teds.metrics.port") != null)
+                    Metrics.serve(Integer.getInteger("teds.metrics.port"));
+                TEDS_Daemon daemon = new TEDS_Daemon(adapter);
+                if (args.length > 1)
+                    daemon.listen(Integer.parseInt(args[1]));
+                else
+                    daemon.serve(responses);
+            } else if (station_mode) {
+                // if the user used the argument "m" then handle each eeprom as it is connected
+                runStation(adapter, read_mode);
+            } else {
+                // wait until an eeprom is connected
+                OneWireContainer owd = new EEPROMMonitor(adapter).waitForArrival();
+                printDeviceInfo(owd);
+
+                // set owd to the fastest speed that has been working for its family
+                SpeedManager.of(adapter).apply(owd);
 
-                // end exclusive use of adapter
-                adapter.endExclusive();
+                // if the user didn't use the argument "r" when running the program then write to the eeprom
+                if (!read_mode) {
 
-                if (!eeprom_found)
-                    System.out.print("No EEPROM Connected. Please connect an EEPROM.\r");
+                    // print the TEDS data in the spreadsheet
+                    printTEDSData();
+
+                    // program and verify if the user chose yes
+                    if (confirmData()) {
+                        programUnit(owd);
+                    } else
+                        System.out.println("Closing Application");
+                } else if (readback != null) {
+                    archiveEEPROM(owd); // add the contents of the eeprom to the archive
+                } else {
+                    readEEPROM(owd); // display the contents of the eeprom
+                }
             }
 
+            // end exclusive use of adapter
+            adapter.endExclusive();
+
             // free the port used by the adapter
             System.out.println("Releasing adapter port");
             adapter.freePort();
@@ -122,216 +197,754 @@ public class TEDS_Writer {
     }
 
     /**
-     * Erases all data from the EPROM
+     * Programs (or reads) every EPROM on the bus in a single adapter session and
+     * prints a pass/fail summary for each ROM ID. The template is confirmed and
+     * encoded once and the same image is written to each device.
      *
-     * @param device device to write to
+     * @param adapter   adapter to search, exclusive use must already be held
+     * @param read_only true to only read the devices instead of programming them
+     * @return map of ROM ID to whether the device passed
      */
-    public void clearEEPROM(OneWireContainer device) {
-        System.out.println("\nErasing EEPROM");
+    public LinkedHashMap<String, Boolean> programAll(DSPortAdapter adapter, boolean read_only) throws Exception {
+        LinkedHashMap<String, Boolean> results = new LinkedHashMap<>();// pass/fail for each rom id
+        ArrayList<OneWireContainer> devices = findEPROMs(adapter);// eproms found on the bus
 
-        byte[] buffer;// data array
-        long start_time, end_time;
-        boolean found_bank = false;
+        if (devices.size() == 0) {
+            System.out.println("No EEPROM Connected. Please connect an EEPROM.");
+            return results;
+        }
+        System.out.println("Found " + devices.size() + " EEPROM(s)\n");
+
+        if (!read_only) {
+            // print the TEDS data in the spreadsheet and confirm once for the whole batch
+            printTEDSData();
+            if (!confirmData()) {
+                System.out.println("Closing Application");
+                return results;
+            }
+        }
 
-        // loop through all of the memory banks on device
-        // get the port names we can use and try to open, test and close each
-        for (Enumeration bank_enum = device.getMemoryBanks(); bank_enum.hasMoreElements();) {
+        programDevices(adapter, devices, read_only, "", results);
 
-            // get the next memory bank
-            MemoryBank bank = (MemoryBank) bank_enum.nextElement();
-            if (bank.getBankDescription().toLowerCase().indexOf("main") != -1) {// if its the main memory
+        if (!read_only || readback != null)
+            printSummary(results);
+        return results;
+    }
 
-                // found a memory bank
-                found_bank = true;
+    /**
+     * Keeps programming (or reading) each EPROM as soon as it is connected until
+     * the application is closed. A device is only handled once while it stays on
+     * the fixture.
+     *
+     * @param adapter   adapter to watch, exclusive use must already be held
+     * @param read_only true to only read the devices instead of programming them
+     */
+    public void runStation(DSPortAdapter adapter, boolean read_only) throws Exception {
+        EEPROMMonitor monitor = new EEPROMMonitor(adapter);
+        LinkedHashMap<String, Boolean> results = new LinkedHashMap<>();// pass/fail for each rom id
+
+        if (!read_only) {
+            // print the TEDS data in the spreadsheet and confirm once for every device
+            printTEDSData();
+            if (!confirmData()) {
+                System.out.println("Closing Application");
+                return;
+            }
+        }
+        TemplateWatcher watcher = new TemplateWatcher(this, template_file);// reloads the template when saved
+        System.out.println("Waiting for EEPROMs, close the application to stop");
 
-                try {
-                    buffer = new byte[bank.getSize()];
-                    formatBuffer(buffer);
+        try {
+            while (true) {
+                OneWireContainer owd = monitor.waitForArrival();
+                programDevices(adapter, List.of(owd), read_only, "", results);
+                if (!read_only || readback != null)
+                    System.out.println(owd.getAddressAsString() + ":\t"
+                            + (results.get(owd.getAddressAsString()) ? "PASS" : "FAIL") + "\n");
+            }
+        } finally {
+            watcher.close();
+        }
+    }
 
-                    // start timer to time the dump of the bank contents
-                    start_time = System.currentTimeMillis();
+    /**
+     * Runs a programming station on every 1-Wire adapter that is plugged in. Each
+     * adapter gets its own worker thread that does its own discovery and
+     * write/verify loop, and the results from all workers are collected into one
+     * summary.
+     *
+     * @param read_only true to only read the devices instead of programming them
+     * @return map of port and ROM ID to whether the device passed
+     */
+    public Map<String, Boolean> programAllAdapters(boolean read_only) throws Exception {
+        ArrayList<DSPortAdapter> adapters = findAdapters();
+        Map<String, Boolean> results = new ConcurrentHashMap<>();// pass/fail for each port and rom id
+
+        if (adapters.size() == 0) {
+            templateError();// report a bad template now too, rather than on the next launch
+            throw new Exception(
+                    "\n\nAdapter not connected.\nConnect a 1-Wire adapter and relaunch the application.\n");
+        }
+        System.out.println("Found " + adapters.size() + " adapter(s)\n");
+
+        if (!read_only) {
+            // print the TEDS data in the spreadsheet and confirm once for every station
+            printTEDSData();
+            if (!confirmData()) {
+                System.out.println("Closing Application");
+                return results;
+            }
+        }
 
-                    // write the buffer
-                    bank.write(0, buffer, 0, bank.getSize());
+        ExecutorService pool = Executors.newFixedThreadPool(adapters.size());
+        ArrayList<Future<?>> stations = new ArrayList<>();
+        for (DSPortAdapter adapter : adapters) {
+            stations.add(pool.submit(() -> {
+                String port = adapter.getAdapterName() + " " + adapter.getPortName();
+                Metrics.setStation(port);
+                try {
+                    // get exclusive use of adapter and clear any previous search restrictions
+                    long acquire_time = System.nanoTime();
+                    adapter.beginExclusive(true);
+                    Metrics.time(Metrics.Phase.ACQUIRE, acquire_time);
+                    adapter.setSearchAllDevices();
+                    adapter.targetAllFamilies();
+                    adapter.setSpeed(DSPortAdapter.SPEED_REGULAR);
+
+                    ArrayList<OneWireContainer> devices = findEPROMs(adapter);
+                    System.out.println(port + ": found " + devices.size() + " EEPROM(s)");
+                    programDevices(adapter, devices, read_only, port + " ", results);
+                } finally {
+                    adapter.endExclusive();
+                    adapter.freePort();
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
 
-                    end_time = System.currentTimeMillis();
+        // wait for every station and report any that failed outright
+        for (Future<?> station : stations) {
+            try {
+                station.get();
+            } catch (ExecutionException e) {
+                System.out.println("Exception in station: " + e.getCause() + "  TRACE: ");
+                e.getCause().printStackTrace();
+            }
+        }
 
-                    System.out.println("Time to clear:\t" + Long.toString((end_time - start_time)) + "ms\n");
+        if (!read_only || readback != null)
+            printSummary(new TreeMap<>(results));
+        return results;
+    }
 
+    /**
+     * Finds every 1-Wire adapter and port that has an adapter plugged in, or the
+     * simulated adapters when teds.sim is set.
+     *
+     * @return list of adapters with their port already selected
+     */
+    public static ArrayList<DSPortAdapter> findAdapters() {
+        if (SimulatedAdapter.enabled())
+            return SimulatedAdapter.all();
+
+        ArrayList<DSPortAdapter> adapters = new ArrayList<>();
+
+        // try every port of every adapter type and keep the ones that respond
+        for (Enumeration adapter_enum = OneWireAccessProvider.enumerateAllAdapters(); adapter_enum
+                .hasMoreElements();) {
+            DSPortAdapter adapter_type = (DSPortAdapter) adapter_enum.nextElement();
+            for (Enumeration port_enum = adapter_type.getPortNames(); port_enum.hasMoreElements();) {
+                String port = (String) port_enum.nextElement();
+                try {
+                    adapters.add(OneWireAccessProvider.getAdapter(adapter_type.getAdapterName(), port));
                 } catch (Exception e) {
-                    System.out.println("Exception in erasing: " + e + "  TRACE: ");
-                    e.printStackTrace();
+                    // nothing connected on this port
                 }
             }
         }
-        if (!found_bank)
-            System.out.println("The device doesn't contain any memory banks");
+
+        return adapters;
     }
 
     /**
-     * Writes the TEDS to the EPROM
+     * Finds every EPROM on the adapter's bus.
      *
-     * @param device device to write to
-     * @return the byte array written
+     * @param adapter adapter to search
+     * @return list of EPROM containers
      */
-    public byte[] writeTEDS(OneWireContainer device) {
-        System.out.println("\nWriting data to EEPROM");
-
-        byte[] buffer = {};// data array
-        long start_time, end_time;
-        boolean found_bank = false;
+    public static ArrayList<OneWireContainer> findEPROMs(DSPortAdapter adapter) throws Exception {
+        ArrayList<OneWireContainer> devices = new ArrayList<>();
+        long start_time = System.nanoTime();
+
+        // enumerate through all the iButtons found and keep the eproms
+        for (Enumeration owd_enum = adapter.getAllDeviceContainers(); owd_enum.hasMoreElements();) {
+            OneWireContainer owd = (OneWireContainer) owd_enum.nextElement();
+            if (isEPROM(owd))
+                devices.add(owd);
+        }
 
-        // loop through all of the memory banks on device
-        // get the port names we can use and try to open, test and close each
-        for (Enumeration bank_enum = device.getMemoryBanks(); bank_enum.hasMoreElements();) {
+        Metrics.time(Metrics.Phase.SEARCH, start_time);
 
-            // get the next memory bank
-            MemoryBank bank = (MemoryBank) bank_enum.nextElement();
-            if (bank.getBankDescription().toLowerCase().indexOf("main") != -1) {// if its the main memory
+        return devices;
+    }
 
-                // found a memory bank
-                found_bank = true;
+    /**
+     * Programs (or reads) each device in turn and records whether it passed.
+     *
+     * @param adapter   adapter the devices are on
+     * @param devices   devices to program
+     * @param read_only true to only read the devices instead of programming them
+     * @param prefix    text put in front of each ROM ID in the results
+     * @param results   map the pass/fail result of each device is added to
+     */
+    public void programDevices(DSPortAdapter adapter, List<OneWireContainer> devices, boolean read_only,
+            String prefix, Map<String, Boolean> results) throws Exception {
+        for (OneWireContainer owd : devices) {
+            printDeviceInfo(owd);
 
-                try {
-                    buffer = new byte[bank.getSize()];
-                    formatBuffer(buffer);
-                    formatData(buffer);
+            // set owd to the fastest speed that has been working for its family
+            SpeedManager.of(adapter).apply(owd);
 
-                    // start timer to time the dump of the bank contents
-                    start_time = System.currentTimeMillis();
+            if (read_only && readback != null) {
+                results.put(prefix + owd.getAddressAsString(), archiveEEPROM(owd));
+                continue;
+            }
+            if (read_only) {
+                readEEPROM(owd);
+                continue;
+            }
 
-                    // write the buffer
-                    bank.write(0, buffer, 0, bank.getSize());
+            results.put(prefix + owd.getAddressAsString(), programUnit(owd));
+        }
 
-                    end_time = System.currentTimeMillis();
+        // save what was read before waiting on the bus again
+        if (read_only && readback != null) {
+            readback.flush();
+            if (readback_view != null)
+                readback_view.flush();
+        }
+    }
 
-                    System.out.println("Time to write:\t" + Long.toString((end_time - start_time)) + "ms\n");
+    /**
+     * Programs a single unit and records it in the ledger. A unit that fails is
+     * retried up to teds.retries times (2 by default), dropping a speed level
+     * each time if there is a slower one. If the ledger shows the device last
+     * passed with the same image this job would write, the pages holding its
+     * TEDS are read once and hashed, and when that matches the image the device
+     * passes without writing anything and without a new ledger entry. A unit
+     * the image can't be made for or written to fails without stopping the
+     * caller, with an empty image hash in the ledger if there was no image.
+     *
+     * @param device device to program
+     * @return true if the device holds the image
+     */
+    public boolean programUnit(OneWireContainer device) throws Exception {
+        Ledger ledger = getLedger();
+        awaitTemplate();
+        getTEDSData();
+        byte[] template = null;// hash of the template the image was made from
+        byte[] image_hash = null;// hash of the TEDS pages of the image the device should hold
+        boolean passed = false;
+        boolean skipped = false;// true if the device already held the image
+
+        // the template may have been read on another thread, carry it over to this unit
+        long template_time;
+        synchronized (this) {
+            template_time = template_nanos;
+            template_nanos = 0;
+        }
+        if (template_time > 0)
+            Metrics.record(Metrics.Phase.TEMPLATE, template_time);
 
+        Metrics.beginUnit(device.getAddressAsString());
+        try {
+            byte[] buffer;// same image for every device unless serial numbers are incremented
+            int used;// bytes of the image the TEDS fills, from the same template as the image
+            synchronized (this) {// a reload can't swap the template between these
+                buffer = getUnitImage(device);
+                used = usedBytes();
+                template = Ledger.fromHex(template_hash);
+            }
+            image_hash = Ledger.hash(Arrays.copyOf(buffer, used));
+
+            // skip a device that already holds exactly this image
+            Ledger.Entry entry = (ledger != null) ? ledger.lookup(device.getAddressAsLong()) : null;
+            if (entry != null && entry.passed && Arrays.equals(entry.template_hash, template)
+                    && Arrays.equals(entry.image_hash, image_hash)) {
+                long start_time = System.nanoTime();
+                byte[] contents = null;
+                try {
+                    contents = Arrays.copyOf(readPages(MemoryLayout.of(device), used), used);
                 } catch (Exception e) {
-                    System.out.println("Exception in writing: " + e + "  TRACE: ");
-                    e.printStackTrace();
+                    System.out.println("Couldn't read the device to compare it: " + e);
                 }
+                Metrics.time(Metrics.Phase.COMPARE, start_time);
+
+                if (contents != null && Arrays.equals(Ledger.hash(contents), image_hash)) {
+                    System.out.println("Already programmed with this image on " + new Date(entry.time)
+                            + ", skipping\n");
+                    skipped = true;// nothing was written, so there is nothing new to record
+                    passed = true;
+                    return passed;
+                }
+            }
 
+            // retry a unit the bus failed on, at a slower speed when there is one
+            SpeedManager speed = SpeedManager.of(device.getAdapter());
+            for (int attempt = 0;; attempt++) {
+                if (attempt == 0)
+                    passed = programTEDS(device, buffer, used);
+                else {
+                    long start_time = System.nanoTime();
+                    Metrics.beginRetry();
+                    try {
+                        passed = programTEDS(device, buffer, used);
+                    } finally {
+                        Metrics.endRetry(start_time);
+                    }
+                }
+                if (passed) {
+                    speed.passed(device);
+                    break;
+                }
+                speed.failed(device);
+                if (attempt >= Integer.getInteger("teds.retries", 2))
+                    break;
+                System.out.println("Retrying at " + speed.speed(device) + " speed");
             }
+            return passed;
+        } catch (Exception e) {
+            // the image can't go on this device, fail it and carry on with the next one
+            System.out.println("Exception in programming: " + e + "  TRACE: ");
+            e.printStackTrace();
+            return false;
+        } finally {
+            long[] phases = Metrics.endUnit(passed);
+            if (ledger != null && !skipped)
+                ledger.append(device.getAddressAsLong(), (template != null) ? template : new byte[32],
+                        (image_hash != null) ? image_hash : new byte[32], passed, phases);
         }
+    }
 
-        if (!found_bank)
-            System.out.println("The device doesn't contain any memory banks");
+    /**
+     * Gets the programming ledger, opening it the first time. A ledger that
+     * can't be opened is reported once and programming carries on without it.
+     *
+     * @return the ledger, or null if there isn't one
+     */
+    private synchronized Ledger getLedger() {
+        if (!ledger_opened) {
+            ledger_opened = true;
+            try {
+                ledger = Ledger.open();
+            } catch (IOException e) {
+                System.out.println("Couldn't open the ledger, devices won't be recorded: " + e);
+            }
+        }
+        return ledger;
+    }
 
-        return buffer;
+    /**
+     * Prints the pass/fail result for each programmed ROM ID.
+     *
+     * @param results map of ROM ID to whether the device passed
+     */
+    public void printSummary(Map<String, Boolean> results) {
+        int passed = 0;
+        for (boolean result : results.values())
+            if (result)
+                passed++;
+
+        System.out.println("\n==============================================");
+        System.out.println("Summary: " + passed + " passed, " + (results.size() - passed) + " failed\n");
+        for (Map.Entry<String, Boolean> result : results.entrySet())
+            System.out.println(String.format("%20s", result.getKey()) + ":\t" + (result.getValue() ? "PASS" : "FAIL"));
+        Metrics.printSummary();
+        System.out.println();
+        SpeedManager.printSummary();
+        System.out.println("==============================================");
     }
 
     /**
-     * Reads the EPROM and checks if the data matches the data sent
+     * Prompts the user to verify the data to be written.
      *
-     * @param device device to write to
-     * @param buffer the byte array to compare to
+     * @return true if the user answered yes
      */
-    public void verifyTEDS(OneWireContainer device, byte[] buffer) {
-        System.out.println("\nVerifying data on EEPROM");
+    public boolean confirmData() {
+        Scanner scanner = new Scanner(System.in); // create a scanner object
+        String ans = ""; // user input
+        System.out.println("============================");
+        System.out.println("Does this look correct (Y/N)?");
+        while (ans.length() == 0
+                || (ans.toLowerCase().charAt(0) != 'y' && ans.toLowerCase().charAt(0) != 'n'))
+            ans = scanner.nextLine();
+        scanner.close();
+
+        return ans.toLowerCase().charAt(0) == 'y';
+    }
 
-        byte[] read_buf = {};// data array
-        boolean found_bank = false;
-        int i, reps = 10;
+    /**
+     * Checks if the device is an EPROM.
+     *
+     * @param device device to check
+     * @return true if the device description contains EPROM
+     */
+    public static boolean isEPROM(OneWireContainer device) {
+        return device.getDescription().indexOf("EPROM") != -1;
+    }
 
-        // loop through all of the memory banks on device
-        // get the port names we can use and try to open, test and close each
-        for (Enumeration bank_enum = device.getMemoryBanks(); bank_enum.hasMoreElements();) {
+    /**
+     * Prints the name and description of the device.
+     *
+     * @param device device to print
+     */
+    public static void printDeviceInfo(OneWireContainer device) {
+        System.out.println("==============================================");
+        System.out.println("Device Name: " + device.getName());
+        System.out.println("Device ROM ID: " + device.getAddressAsString());
+        System.out.println("Device Other Names: " + device.getAlternateNames());
+        System.out.println("Device Description: " + device.getDescription());
+        System.out.println("==============================================");
+    }
 
-            // get the next memory bank
-            MemoryBank bank = (MemoryBank) bank_enum.nextElement();
-            if (bank.getBankDescription().toLowerCase().indexOf("main") != -1) {// if its the main memory
+    /**
+     * Programs the TEDS image a page at a time. Only the pages the TEDS fills
+     * are touched, in every bank the image covers. Each page is read, written
+     * only if it differs from the image, and read back straight away before the
+     * next page is started, so a bad page stops programming as soon as it is
+     * found instead of after the whole bank has been written.
+     *
+     * @param device device to write to
+     * @param buffer the byte array to write
+     * @return true if every page the TEDS fills matches the image, false if the
+     *         bus failed and the write is worth retrying
+     * @throws Exception if the image can't be written to this device at all
+     */
+    public boolean programTEDS(OneWireContainer device, byte[] buffer) throws Exception {
+        return programTEDS(device, buffer, usedBytes());
+    }
 
-                // found a memory bank
-                found_bank = true;
+    /**
+     * Programs the pages holding the first bytes of the image.
+     *
+     * @param device device to write to
+     * @param buffer the byte array to write
+     * @param used   bytes at the start of the image that hold the TEDS
+     * @return true if every page holding those bytes matches the image, false
+     *         if a page read back wrong, failed its CRC or the bus failed
+     * @throws Exception if the image doesn't fit the device or the device
+     *                   refused it, which no retry or slower speed will fix
+     */
+    public boolean programTEDS(OneWireContainer device, byte[] buffer, int used) throws Exception {
+        System.out.println("\nProgramming EEPROM");
 
-                try {
-                    read_buf = new byte[bank.getSize()];
-
-                    // get overdrive going so not a factor in time tests
-                    bank.read(0, false, read_buf, 0, 1);
-
-                    // dynamically change number of reps
-                    reps = 1500 / read_buf.length;
-
-                    if (device.getMaxSpeed() == DSPortAdapter.SPEED_OVERDRIVE)
-                        reps *= 2;
-                    // read the entire bank
-                    for (i = 0; i < reps; i++)
-                        bank.read(0, false, read_buf, 0, bank.getSize());
-
-                    // compare to buffer
-                    if (Arrays.equals(read_buf, buffer))
-                        System.out.println("EEPROM Verification Successful");
-                    else {
-                        System.out.println("EEPROM Verification Failed\nData Mismatch\n");
-                        System.out.println("Expected Data:\n" + bytesToHex(buffer));
-                        System.out.println("Found Data:\n" + bytesToHex(read_buf));
-                    }
+        byte[] page_buf = {};// data array for one page
+        long start_time, end_time;
+        boolean success = false;
+        MemoryLayout.Page previous = null;// page read last, to carry on reading from it
+        int pages_written = 0;
 
-                } catch (Exception e) {
-                    System.out.println("Exception in verifying: " + e + "  TRACE: ");
-                    e.printStackTrace();
+        try {
+            MemoryLayout layout = MemoryLayout.of(device);
+            if (buffer.length != layout.size())
+                throw new Exception("Image size " + buffer.length + " doesn't match memory size " + layout.size());
+
+            List<MemoryLayout.Page> pages = layout.pages(used);
+            System.out.print(layout.describe(used));
+            success = true;
+
+            start_time = System.currentTimeMillis();
+
+            for (MemoryLayout.Page page : pages) {
+                if (page_buf.length != getPageLength(page.bank))
+                    page_buf = new byte[getPageLength(page.bank)];
+                int start = page.offset;
+                int end = start + page.length;
+
+                // skip the page if it already holds the image
+                long phase_time = System.nanoTime();
+                readPage(page.bank, page.page, page.follows(previous), page_buf);
+                Metrics.time(Metrics.Phase.COMPARE, phase_time);
+                previous = page;
+                if (Arrays.equals(page_buf, 0, page.length, buffer, start, end))
+                    continue;
+
+                // write the page and check it before moving on
+                phase_time = System.nanoTime();
+                page.bank.write(page.start, buffer, start, page.length);
+                Metrics.time(Metrics.Phase.WRITE, phase_time);
+                pages_written++;
+                phase_time = System.nanoTime();
+                readPage(page.bank, page.page, false, page_buf);
+                Metrics.time(Metrics.Phase.VERIFY, phase_time);
+                if (!Arrays.equals(page_buf, 0, page.length, buffer, start, end)) {
+                    System.out.println("EEPROM Programming Failed\nData Mismatch on page " + page.page + " of "
+                            + page.bank.getBankDescription() + "\n");
+                    System.out.println("Expected Data:\n" + bytesToHex(Arrays.copyOfRange(buffer, start, end)));
+                    System.out.println("Found Data:\n" + bytesToHex(Arrays.copyOfRange(page_buf, 0, page.length)));
+                    success = false;
+                    break;
                 }
-
             }
+
+            end_time = System.currentTimeMillis();
+
+            System.out.println("Pages written:\t" + pages_written + " of " + pages.size() + " used ("
+                    + layout.pageCount() + " in memory)");
+            System.out.println("Time to program:\t" + Long.toString((end_time - start_time)) + "ms\n");
+            if (success)
+                System.out.println("EEPROM Verification Successful");
+
+        } catch (OneWireIOException e) {
+            // a bus error or bad CRC, anything else is passed on to the caller
+            System.out.println("Exception in programming: " + e + "  TRACE: ");
+            e.printStackTrace();
+            success = false;
         }
 
-        if (!found_bank)
-            System.out.println("The device doesn't contain any memory banks");
+        return success;
     }
 
     /**
-     * Reads the EPROM and prints the contents
+     * Gets the encoded image for the device, only encoding it the first time a
+     * memory of that size is seen. Safe to call from several stations at once.
      *
-     * @param device device to read
+     * @param device device the image is for
+     * @return the encoded byte array, which must not be modified
      */
-    public void readEEPROM(OneWireContainer device) {
-        System.out.println("\nReading data on EEPROM");
+    public synchronized byte[] getImage(OneWireContainer device) throws Exception {
+        int size = MemoryLayout.of(device).size();
 
-        byte[] read_buf = {};// data array
-        boolean found_bank = false;
-        int i, reps = 10;
+        if (!images.containsKey(size)) {
+            images.put(size, buildImage(size));
+            saveCache();
+        }
+        return images.get(size);
+    }
 
-        // loop through all of the memory banks on device
-        // get the port names we can use and try to open, test and close each
-        for (Enumeration bank_enum = device.getMemoryBanks(); bank_enum.hasMoreElements();) {
+    /**
+     * Gets the image for the next unit. When serial numbers are being
+     * incremented the base image is patched with the next serial number,
+     * otherwise every unit gets the same image.
+     *
+     * @param device device the image is for
+     * @return the encoded byte array
+     */
+    public synchronized byte[] getUnitImage(OneWireContainer device) throws Exception {
+        byte[] base = getImage(device);
+        if (next_serial < 0)
+            return base;
+
+        ImagePatcher patcher = patchers.get(base.length);
+        if (patcher == null) {
+            patcher = new ImagePatcher(fields, base);
+            patchers.put(base.length, patcher);
+        }
 
-            // get the next memory bank
-            MemoryBank bank = (MemoryBank) bank_enum.nextElement();
-            if (bank.getBankDescription().toLowerCase().indexOf("main") != -1) {// if its the main memory
+        System.out.println(ImagePatcher.SERIAL_FIELD + ": " + next_serial);
+        long start_time = System.nanoTime();
+        byte[] image = patcher.serialImage(next_serial++);
+        Metrics.time(Metrics.Phase.ENCODE, start_time);
+        return image;
+    }
 
-                // found a memory bank
-                found_bank = true;
+    /**
+     * Starts giving each unit its own serial number.
+     *
+     * @param serial serial number of the next unit, or -1 to stop incrementing
+     */
+    public synchronized void setNextSerial(long serial) {
+        next_serial = serial;
+    }
 
-                try {
-                    read_buf = new byte[bank.getSize()];
+    /**
+     * Gets the compiled fields of the template.
+     *
+     * @return the fields in the order they are written
+     */
+    public List<TEDSField> getFields() throws Exception {
+        getTEDSData();
+        return Collections.unmodifiableList(fields);
+    }
 
-                    // get overdrive going so not a factor in time tests
-                    bank.read(0, false, read_buf, 0, 1);
+    /**
+     * Encodes the TEDS data into an image of the given size
+     *
+     * @param size size of the image in bytes
+     * @return the encoded byte array
+     */
+    public byte[] buildImage(int size) throws Exception {
+        byte[] buffer = new byte[size];
 
-                    // dynamically change number of reps
-                    reps = 1500 / read_buf.length;
+        getTEDSData();
+        if (usedBytes() > size)
+            throw new Exception("The TEDS needs " + usedBytes() + " bytes but the image only has " + size);
+        long start_time = System.nanoTime();
+        formatBuffer(buffer);
+        formatData(buffer);
+        Metrics.time(Metrics.Phase.ENCODE, start_time);
 
-                    if (device.getMaxSpeed() == DSPortAdapter.SPEED_OVERDRIVE)
-                        reps *= 2;
-                    // read the entire bank
-                    for (i = 0; i < reps; i++)
-                        bank.read(0, false, read_buf, 0, bank.getSize());
+        return buffer;
+    }
 
-                    System.out.println("Contents:");
-                    System.out.println(bytesToHex(read_buf));
+    /**
+     * Reads the EPROM and prints the contents
+     *
+     * @param device device to read
+     */
+    public void readEEPROM(OneWireContainer device) {
+        System.out.println("\nReading data on EEPROM");
 
-                } catch (Exception e) {
-                    System.out.println("Exception in reading: " + e + "  TRACE: ");
-                    e.printStackTrace();
-                }
+        try {
+            byte[] read_buf = readBank(device);
+            System.out.println("Contents:");
+            System.out.println(bytesToHex(read_buf));
+
+            // decode the contents if the template can be read without loading the spreadsheet
+            List<TEDSField> decode_fields = fieldsWithoutSpreadsheet();
+            if (decode_fields != null)
+                new TEDSDecoder(decode_fields).print(read_buf);
+            else if (template_file.exists())
+                System.out.println("\nNot decoded, " + template_file + " has no template cache yet. Convert it to a CSV"
+                        + " template with \"t\" or program a unit with it to decode what is read");
+        } catch (Exception e) {
+            System.out.println("Exception in reading: " + e + "  TRACE: ");
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Gets the compiled fields if they can be had without reading a template
+     * spreadsheet, from fields already read, a CSV template or an up to date
+     * template cache. Reading a device only decodes it when this is cheap.
+     *
+     * @return the fields in the order they are written, or null if only the
+     *         spreadsheet has them
+     */
+    public synchronized List<TEDSField> fieldsWithoutSpreadsheet() throws Exception {
+        if (fields.size() == 0 && (!template_file.exists() || (!TemplateCSV.isCSV(template_file)
+                && TemplateCache.read(template_file, TemplateCache.hash(template_file)) == null)))
+            return null;
+        return getFields();
+    }
+
+    /**
+     * Opens the archive that devices are read into instead of being printed. The
+     * archive is closed when the application exits.
+     *
+     * @param archive archive file, appended to if it exists
+     * @param view    file to also append a hex listing of each device to, or null
+     */
+    public void openReadback(File archive, File view) throws IOException {
+        readback = new ImageArchive(archive);
+        readback_view = (view != null) ? new HexView(view) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                readback.close();
+                if (readback_view != null)
+                    readback_view.close();
+            } catch (IOException e) {
+                System.out.println("Couldn't save the archive: " + e);
             }
+        }));
+    }
+
+    /**
+     * Reads the EPROM and appends every memory bank the image covers to the
+     * archive, laid out the same as an image and tagged with its ROM ID and
+     * the time it was read
+     *
+     * @param device device to read
+     * @return true if the device was read and archived
+     */
+    public boolean archiveEEPROM(OneWireContainer device) {
+        try {
+            byte[] read_buf = readBank(device);
+            long time = System.currentTimeMillis();
+            readback.append(device.getAddressAsString(), time, read_buf);
+            if (readback_view != null)
+                readback_view.append(device.getAddressAsString(), time, read_buf);
+            System.out.println("Archived " + read_buf.length + " bytes");
+            return true;
+        } catch (Exception e) {
+            System.out.println("Exception in reading: " + e + "  TRACE: ");
+            e.printStackTrace();
+            return false;
         }
+    }
 
-        if (!found_bank)
-            System.out.println("The device doesn't contain any memory banks");
+    /**
+     * Reads every memory bank the image covers once, a page at a time
+     *
+     * @param device device to read
+     * @return the contents, laid out the same as an image
+     */
+    public static byte[] readBank(OneWireContainer device) throws Exception {
+        MemoryLayout layout = MemoryLayout.of(device);
+        return readPages(layout, layout.size());
+    }
+
+    /**
+     * Reads the pages holding the start of the image, carrying each read on
+     * from the page before it where it can.
+     *
+     * @param layout layout of the device's memory
+     * @param length bytes from the start of the image to read
+     * @return the contents of every page holding those bytes, laid out the same
+     *         as an image
+     */
+    public static byte[] readPages(MemoryLayout layout, int length) throws Exception {
+        List<MemoryLayout.Page> pages = layout.pages(length);
+        MemoryLayout.Page last = pages.get(pages.size() - 1);
+        byte[] read_buf = new byte[last.offset + last.length];// data array
+        byte[] page_buf = {};// data array for one page
+        MemoryLayout.Page previous = null;// page read last
+
+        for (MemoryLayout.Page page : pages) {
+            if (page_buf.length != getPageLength(page.bank))
+                page_buf = new byte[getPageLength(page.bank)];
+            readPage(page.bank, page.page, page.follows(previous), page_buf);
+            System.arraycopy(page_buf, 0, read_buf, page.offset, page.length);
+            previous = page;
+        }
+
+        return read_buf;
+    }
+
+    /**
+     * Reads one page of the memory bank, using the CRC checked page read when the
+     * bank supports it so a bad read throws instead of returning bad data.
+     *
+     * @param bank          memory bank to read
+     * @param page          page number to read
+     * @param read_continue true if this page follows directly after the last read
+     * @param page_buf      byte array at least one page long to read into
+     */
+    public static void readPage(MemoryBank bank, int page, boolean read_continue, byte[] page_buf)
+            throws Exception {
+        if (bank instanceof PagedMemoryBank) {
+            PagedMemoryBank paged_bank = (PagedMemoryBank) bank;
+            if (paged_bank.hasPageAutoCRC())
+                paged_bank.readPageCRC(page, read_continue, page_buf, 0);
+            else
+                paged_bank.readPage(page, read_continue, page_buf, 0);
+        } else {
+            int start = page * PAGE_SIZE;
+            bank.read(start, read_continue, page_buf, 0, Math.min(PAGE_SIZE, bank.getSize() - start));
+        }
+    }
+
+    /**
+     * Gets the page length of the memory bank.
+     *
+     * @param bank memory bank
+     * @return the bank's page length, or 32 if the bank isn't paged
+     */
+    public static int getPageLength(MemoryBank bank) {
+        if (bank instanceof PagedMemoryBank)
+            return ((PagedMemoryBank) bank).getPageLength();
+        return PAGE_SIZE;
     }
 
     /**
@@ -341,149 +954,46 @@ public class TEDS_Writer {
      */
     public void formatBuffer(byte[] buffer) throws Exception {
         Arrays.fill(buffer, (byte) 0);
-        // fill usable portion of memory bank
-        for (int i = 0; i < 8 * 32; i++) {
-            buffer[i] = (byte) ((i % 32 == 0) ? 31 : 255);
+        // fill usable portion of memory, the first 8 pages or as many as the TEDS touches
+        int end = Math.min(buffer.length, Math.max(8, (usedBytes() + PAGE_SIZE - 1) / PAGE_SIZE) * PAGE_SIZE);
+        for (int start = 0; start < end; start += PAGE_SIZE) {
+            int stop = Math.min(start + PAGE_SIZE, end);// a partial last page keeps its own checksum
+            Arrays.fill(buffer, start + 1, stop, (byte) 255);
+            buffer[start] = (byte) ((stop - start - 1) * -255);
         }
     }
 
     /**
-     * formats the data into a byte array to be written
+     * Gets the number of bytes at the start of the image that the TEDS fills,
+     * up to the last byte holding a bit of it.
      *
-     * @param buffer byte array to add data to
+     * @return bytes holding the TEDS, counted the same as BitWriter.capacity
      */
-    public void formatData(byte[] buffer) throws Exception {
-        String str_entry, type;
-        char char_entry;
-        int int_entry = 0;
-        float float_entry = 0;
-        int length = 0;
-        int byte_length = 0;
-        byte[] byte_arr = { (byte) 0, (byte) 0, (byte) 0, (byte) 0 };
-
-        // for each value in data map
-        for (String key : map_keys) {
-
-            // get data
-            type = data_map.get(key)[3].replaceAll("\\s", "");
-            length = (int) Double.parseDouble(data_map.get(key)[1]);
-            if (type.equals("UNINT"))
-                int_entry = (int) Double.parseDouble(data_map.get(key)[0]);
-            else if (type.equals("Chr5")) {
-                str_entry = data_map.get(key)[0];
-                int_entry = 0;
-                for (int i = 0; i < str_entry.length(); i++) {
-                    char_entry = str_entry.charAt(i);
-                    int_entry += (int) ((((byte) char_entry << 3) >> 3) - 64) << 5 * i;
-                }
-            } else if (type.equals("DATE")) {
-                LocalDate date_1 = LocalDate.parse("1998-01-01");
-                Instant instant_1 = date_1.atStartOfDay(ZoneId.systemDefault()).toInstant();
-                LocalDate date_2 = LocalDate.parse(data_map.get(key)[0]);
-                Instant instant_2 = date_2.atStartOfDay(ZoneId.systemDefault()).toInstant();
-
-                int_entry = (int) Duration.between(instant_1, instant_2).toDays();
-
-            } else if (type.equals("ConRelRes")) {
-                int_entry = conRelResToInt(data_map.get(key)[0], data_map.get(key)[2]);
-            } else if (type.equals("ConRes")) {
-                int_entry = conResToInt(data_map.get(key)[0], data_map.get(key)[2]);
-            } else if (type.equals("Single")) {
-                float_entry = (float) Double.parseDouble(data_map.get(key)[0]);
-                int_entry = Float.floatToIntBits(float_entry);
-            } else
-                throw new Exception("Unrecognized data type " + data_map.get(key)[3]);
-
-            // System.out.println(key + ": Pos: " + (sub_index == 0 ? index * 8 : ((index -
-            // 1) * 8 + sub_index)));// print
-            // bitpos
-            // for
-            // each
-            // element
-
-            // put data into byte array
-            byte_arr[0] = (byte) (int_entry >>> 24);
-            byte_arr[1] = (byte) (int_entry >>> 16);
-            byte_arr[2] = (byte) (int_entry >>> 8);
-            byte_arr[3] = (byte) ((int_entry < 0) ? int_entry + 256 : int_entry);
-
-            byte_length = length;
-            if (byte_length > 0)
-                addToBuffer(buffer, byte_arr[3], byte_length);
-            byte_length = length - 8;
-            if (byte_length > 0)
-                addToBuffer(buffer, byte_arr[2], byte_length);
-            byte_length = length - 16;
-            if (byte_length > 0)
-                addToBuffer(buffer, byte_arr[1], byte_length);
-            byte_length = length - 24;
-            if (byte_length > 0)
-                addToBuffer(buffer, byte_arr[0], byte_length);
-
-            int_entry = 0;
-        }
-        sub_index = 0;
-        addToBuffer(buffer, (byte) 255, 8);
-
-        calculateChecksum(buffer);
-
+    public synchronized int usedBytes() {
+        int bits = 0;
+        for (TEDSField field : fields)
+            bits += field.length;
+        return MemoryLayout.usedBytes(bits);
     }
 
     /**
-     * Add at most a byte to the buffer filling in empty space.
-     * 
-     * @param buffer byte array to add to
-     * @param data   byte to add to the array
-     * @param length length of the data
-     */
-    public void addToBuffer(byte[] buffer, byte data, int length) {
-        if (index % 32 == 0)// skip checksum bytes
-            index++;
-        if (length > 8)
-            length = 8;
-
-        if (sub_index == 0) {
-            buffer[index] = (byte) (data << 8 - (length));// shift the data all the way to the left in an empty byte
-            sub_index += length;
-            if (sub_index >= 8) {
-                sub_index = 0;
-                index++;// move to the next byte
-                if (index % 32 == 0)// skip checksum bytes
-                    index++;
-            }
-        } else {
-            int temp = 8 - sub_index;
-            int temp_byte = buffer[index];
-            if (temp_byte < 0)
-                temp_byte += 256;
-            buffer[index] = (byte) ((byte) (temp_byte >> temp) + (byte) (data << sub_index));// move existing buffer
-                                                                                             // data
-                                                                                             // right, shift new data
-                                                                                             // left,
-                                                                                             // and add new data
-            sub_index += length;
-            if (sub_index >= 8) {
-                sub_index = 0;
-                index++;// move to the next byte
-                if (index % 32 == 0)// skip checksum bytes
-                    index++;
-                data = (byte) (data >> temp);// remove the bits that were added to the
-                buffer[index] = (byte) (data << 8 - (length - temp));// shift the leftover data all the way to the left
-                                                                     // in an
-                sub_index += length - temp;
-            } else {
-                buffer[index] = (byte) (buffer[index] << (8 - sub_index)); // shift data left in not full
-            }
-        }
+     * formats the data into a byte array to be written
+     *
+     * @param buffer byte array to add data to
+     */
+    public void formatData(byte[] buffer) throws Exception {
+        // pack each compiled field, the page checksums are kept up to date as it goes
+        BitWriter.encode(fields, buffer);
     }
 
     /**
-     * Calculates and inserts the checksum at the beginning of the byte array.
+     * Calculates and inserts the checksum at the beginning of each page of the
+     * byte array.
      * 
      * @param buffer byte array
      */
-    public void calculateChecksum(byte[] buffer) {
-        for (int block = 0; block <= (int) index / 32; block++) {
+    public static void calculateChecksum(byte[] buffer) {
+        for (int block = 0; block < buffer.length / 32; block++) {
             int sum = 0;
             for (int i = 1; i < 32; ++i) {
                 sum += buffer[block * 32 + i];
@@ -500,119 +1010,218 @@ public class TEDS_Writer {
      * Gets the TEDS Data and then prints the TEDS data to the console
      */
     public void printTEDSData() throws Exception {
+        awaitTemplate();
         getTEDSData();
         System.out.println("Data to be Written:\n");
-        for (String key : map_keys) {
-            String value = data_map.get(key)[0].toString();
-            System.out.println(String.format("%30s", key) + ":\t" + String.format("%-20s", value));
-        }
+        for (TEDSField field : fields)
+            System.out.println(String.format("%30s", field.name) + ":\t" + String.format("%-20s", field.entry));
     }
     
 
     /**
-     * Reads the TEDS data from the xlsx file
-     */
-    public void getTEDSData() throws Exception {
-        if (map_keys.size() == 0) {// only get data once
-            OPCPackage pkg = OPCPackage.open(new File("TEDS_Data.xlsx"));
-            XSSFWorkbook workbook = new XSSFWorkbook(pkg);
-
-            Sheet sheet = workbook.getSheetAt(0); // set to first sheet
-            Iterator<Row> row_iterator = sheet.iterator(); // create a row iterator
-            Row row = row_iterator.next();
-            Cell cell;
-            String field, length, range, type, entry;
-            String[] arr;
-            while (row_iterator.hasNext()) {
-                row = row_iterator.next(); // For each row, iterate through each columns
-                if (row.getCell(0) != null && row.getCell(0).getCellType() == CellType.STRING) {
-                    // add field and entry to hash map
-                    cell = row.getCell(0);
-                    field = cell.getStringCellValue();
-                    cell = row.getCell(1);
-                    length = (cell.getCellType() == CellType.STRING) ? cell.getStringCellValue()
-                            : String.valueOf(cell.getNumericCellValue());
-                    cell = row.getCell(2);
-                    range = (cell.getCellType() == CellType.STRING) ? cell.getStringCellValue()
-                            : String.valueOf(cell.getNumericCellValue());
-                    cell = row.getCell(3);
-                    type = (cell.getCellType() == CellType.STRING) ? cell.getStringCellValue()
-                            : String.valueOf(cell.getNumericCellValue());
-                    cell = row.getCell(4);
-                    entry = (cell.getCellType() == CellType.STRING) ? cell.getStringCellValue()
-                            : String.valueOf(cell.getNumericCellValue());
-                    if (withinRange(entry, range)) {
-                        arr = new String[] { entry, length, range, type };
-                        data_map.put(field, arr);
-                        map_keys.add(field);
-                    } else
-                        throw new Exception(entry + " is outside of the range for " + field);
-                }
-            }
-            workbook.close();
-            pkg.close();
-        }
+     * Reads the TEDS rows from a template, either a spreadsheet or its CSV form.
+     * The spreadsheet libraries are only loaded for a spreadsheet.
+     *
+     * @param file template to read
+     * @return list of { field, length, range, type, entry } for each row
+     */
+    public static ArrayList<String[]> readRows(File file) throws Exception {
+        return TemplateCSV.isCSV(file) ? TemplateCSV.readRows(file) : TemplateReader.readRows(file);
     }
 
     /**
-     * Converts a byte array to a string of hexadecimal values.
-     * 
-     * @param bytes the byte array being converted
-     * @return a string of hexidecimal values
+     * Gets the template to use when none is given. TEDS_Data.csv is used if it
+     * has been exported and the spreadsheet hasn't been saved since, otherwise
+     * TEDS_Data.xlsx.
+     *
+     * @return the default template
      */
-    public static String bytesToHex(byte[] bytes) {
-        final byte[] HEX_ARRAY = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
-        byte[] hexChars = new byte[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+    public static File defaultTemplate() {
+        File spreadsheet = new File("TEDS_Data.xlsx");
+        File csv = new File("TEDS_Data.csv");
+        if (csv.isFile() && (!spreadsheet.exists() || csv.lastModified() >= spreadsheet.lastModified()))
+            return csv;
+        return spreadsheet;
+    }
+
+    /**
+     * Reads the TEDS data from the template, or from the template cache if the
+     * file hasn't changed since the cache was made
+     */
+    public synchronized void getTEDSData() throws Exception {
+        if (fields.size() == 0) {// only get data once
+            long start_time = System.nanoTime();
+            template_hash = TemplateCache.hash(template_file);
+            TemplateCache cache = TemplateCache.read(template_file, template_hash);
+
+            // compile each row, which also checks the entry is within its range
+            ArrayList<TEDSField> compiled = new ArrayList<>();// only kept once every row compiles
+            for (String[] row : (cache != null) ? cache.rows : readRows(template_file))
+                compiled.add(TEDSField.compile(row[0], row[1], row[2], row[3], row[4]));
+            fields.addAll(compiled);
+
+            if (cache != null)
+                images.putAll(cache.images);
+            else
+                saveCache();
+            template_nanos += System.nanoTime() - start_time;
         }
-        return new String(hexChars, StandardCharsets.UTF_8);
     }
 
     /**
-     * Converts conRes data to an int.
-     * 
-     * @param entry the vaulue being evaluated
-     * @param range the string representation of the specified range
+     * Reads the template again after it has changed and swaps it in for the
+     * next unit. If the fields are the same apart from their values, only the
+     * changed fields are written into copies of the encoded images, otherwise
+     * the images are encoded again when next needed. Images already handed out
+     * are never modified, so a unit being programmed carries on with the old
+     * template. If the new template can't be read the old one is kept.
+     *
+     * @return true if the template had changed
      */
-    public int conResToInt(String entry, String range) {
-        int value = 0;
-        double double_entry = Double.valueOf(entry);
-        double min = Double.valueOf(range.substring(0, range.indexOf("to")));
-        double step = Double.valueOf(range.substring(range.indexOf("step") + 5));
+    public synchronized boolean reload() throws Exception {
+        getTEDSData();
+        long start_time = System.nanoTime();
+        String hash = TemplateCache.hash(template_file);
+        if (hash.equals(template_hash))
+            return false;// saved without any changes
+        TemplateCache cache = TemplateCache.read(template_file, hash);
+
+        ArrayList<TEDSField> compiled = new ArrayList<>();
+        for (String[] row : (cache != null) ? cache.rows : readRows(template_file))
+            compiled.add(TEDSField.compile(row[0], row[1], row[2], row[3], row[4]));
+
+        // the bit layout only stays the same if every field keeps its name and length
+        boolean same_layout = compiled.size() == fields.size();
+        for (int i = 0; same_layout && i < compiled.size(); i++)
+            same_layout = compiled.get(i).name.equals(fields.get(i).name)
+                    && compiled.get(i).length == fields.get(i).length;
+
+        HashMap<Integer, byte[]> new_images = new HashMap<>();// images for the new template by bank size
+        if (same_layout) {
+            ArrayList<String> changes = new ArrayList<>();// description of each changed field
+            for (int i = 0; i < compiled.size(); i++)
+                if (compiled.get(i).value != fields.get(i).value)
+                    changes.add(compiled.get(i).name + " (" + fields.get(i).entry + " -> " + compiled.get(i).entry
+                            + ")");
+
+            for (Map.Entry<Integer, byte[]> image : images.entrySet()) {
+                byte[] buffer = image.getValue().clone();
+                int bit = 0;// position of the field in the bit stream
+                for (int i = 0; i < compiled.size(); i++) {
+                    if (compiled.get(i).value != fields.get(i).value)
+                        BitWriter.writeBits(buffer, bit, compiled.get(i).value, compiled.get(i).length);
+                    bit += compiled.get(i).length;
+                }
+                new_images.put(image.getKey(), buffer);
+            }
+            System.out.println("Template reloaded, changed: "
+                    + (changes.isEmpty() ? "nothing that is written" : String.join(", ", changes)));
+        } else
+            System.out.println("Template reloaded, fields were added, removed or resized so images will be encoded"
+                    + " again");
+
+        // swap everything at once, anyone holding the lock sees either the old or the new template
+        fields = compiled;
+        images = new_images;
+        patchers.clear();
+        template_hash = hash;
+        saveCache();
+        template_nanos += System.nanoTime() - start_time;
+        return true;
+    }
 
-        value = (int) Math.round((double_entry - min) / step);
+    /**
+     * Starts reading the template on a background thread, so it is ready by the
+     * time the adapter has been opened and searched. The image itself is
+     * encoded once the device's bank size is known, which only takes
+     * microseconds. Anything that needs the template waits for it with
+     * awaitTemplate.
+     *
+     * @param serial true to start the serial numbers at the template's serial
+     *               number once it has been read
+     */
+    public void loadTemplateAsync(boolean serial) {
+        template_load = CompletableFuture.runAsync(() -> {
+            try {
+                getTEDSData();
+                if (serial) {
+                    for (TEDSField field : fields)
+                        if (field.name.equals(ImagePatcher.SERIAL_FIELD))
+                            setNextSerial(field.value);
+                    if (next_serial < 0)
+                        throw new Exception("The template doesn't have a " + ImagePatcher.SERIAL_FIELD + " field");
+                }
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
 
-        return value;
+    /**
+     * Waits for the template being read in the background, if there is one.
+     * An error reading it is thrown here, on the thread that needs the
+     * template.
+     */
+    private void awaitTemplate() throws Exception {
+        CompletableFuture<Void> load = template_load;
+        if (load == null)
+            return;
+        try {
+            load.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } finally {
+            template_load = null;
+        }
     }
 
     /**
-     * Converts conRelRes data to an int.
-     * 
-     * @param entry the vaulue being evaluated
-     * @param range the string representation of the specified range
+     * Prints the error from reading the template in the background, if it has
+     * already failed. Used when something else fails first, so both problems
+     * are reported at once.
      */
-    public int conRelResToInt(String entry, String range) {
-        int value = 0;
-        double double_entry = Double.valueOf(entry);
-        double min = Double.valueOf(range.substring(0, range.indexOf("to")));
-        double resolution = Double.valueOf(range.substring(range.indexOf("±") + 1, range.indexOf("%"))) / 100;
+    private void templateError() {
+        CompletableFuture<Void> load = template_load;
+        if (load != null && load.isCompletedExceptionally()) {
+            try {
+                awaitTemplate();
+            } catch (Exception e) {
+                System.out.println("Exception in reading the template: " + e);
+            }
+        }
+    }
 
-        value = (int) Math.round(((1 / (Math.log10(1 + resolution * 2))) * Math.log10(double_entry / min)));
+    /**
+     * Saves the TEDS data and the images encoded so far to the template cache.
+     * Failing to save only means the next run reads the template file again.
+     */
+    public void saveCache() {
+        ArrayList<String[]> rows = new ArrayList<>();
+        for (TEDSField field : fields)
+            rows.add(new String[] { field.name, String.valueOf(field.length), field.range, field.type.name(),
+                    field.entry });
 
-        return value;
+        try {
+            TemplateCache.write(template_file, template_hash, rows, images);
+        } catch (Exception e) {
+            System.out.println("Couldn't save the template cache: " + e);
+        }
     }
 
     /**
-     * Checks if the entry is within the given range and returns the result.
+     * Converts a byte array to a string of hexadecimal values.
      * 
-     * @param entry the vaulue being evaluated
-     * @param range the string representation of the specified range
+     * @param bytes the byte array being converted
+     * @return a string of hexidecimal values
      */
-    public boolean withinRange(String entry, String range) {
-        // TODO check if entry is within range
-        return true;
+    public static String bytesToHex(byte[] bytes) {
+        final byte[] HEX_ARRAY = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+        byte[] hexChars = new byte[bytes.length * 2];
+        for (int j = 0; j < bytes.length; j++) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars, StandardCharsets.UTF_8);
     }
 }
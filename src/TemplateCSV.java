@@ -0,0 +1,98 @@
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Plain text form of the TEDS_Data spreadsheet.
+ *
+ * Holds the same five columns as the first sheet of the spreadsheet, one row
+ * per line after a header line. Reading it needs nothing outside the JDK, so
+ * a station using a CSV template never loads the spreadsheet libraries, and a
+ * template exported from the spreadsheet encodes to exactly the same image.
+ *
+ * <pre>
+ * Field,Length,Range,Type,Entry
+ * Manufacturer ID,14.0,17-16381,UNINT,67
+ * Minimum physical value,32,0.0,Single,0
+ * </pre>
+ */
+public class TemplateCSV {
+    private static final String HEADER = "Field,Length,Range,Type,Entry";
+    private static final int COLUMNS = 5;// field, length, range, type, entry
+
+    private TemplateCSV() {
+    }
+
+    /**
+     * Checks if a template is in the plain text form.
+     *
+     * @param file template file
+     * @return true if the file name ends in .csv
+     */
+    public static boolean isCSV(File file) {
+        return file.getName().toLowerCase().endsWith(".csv");
+    }
+
+    /**
+     * Reads the TEDS rows from a CSV template. The header line, blank lines
+     * and rows without a field name are skipped, and a blank value reads as
+     * 0.0 the same as a blank cell in the spreadsheet.
+     *
+     * @param file template to read
+     * @return list of { field, length, range, type, entry } for each row
+     */
+    public static ArrayList<String[]> readRows(File file) throws Exception {
+        ArrayList<String[]> rows = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (int i = 1; i < lines.size(); i++) {
+            if (lines.get(i).trim().isEmpty())
+                continue;
+            String[] values = CSV.parse(lines.get(i));
+            if (values[0].isEmpty())
+                continue;
+            if (values.length > COLUMNS)
+                throw new Exception(file + " line " + (i + 1) + " has more than " + COLUMNS + " values");
+
+            String[] row = new String[COLUMNS];
+            for (int j = 0; j < COLUMNS; j++)
+                row[j] = (j < values.length && !values[j].isEmpty()) ? values[j] : String.valueOf(0.0);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Writes TEDS rows as a CSV template, replacing the file in one step.
+     *
+     * @param rows { field, length, range, type, entry } for each row
+     * @param file template to write
+     */
+    public static void write(List<String[]> rows, File file) throws Exception {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (String[] row : rows) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < row.length; i++)
+                line.append(i == 0 ? "" : ",").append(CSV.quote(row[i]));
+            lines.add(line.toString());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Converts a template spreadsheet to a CSV template.
+     *
+     * @param spreadsheet template spreadsheet to read
+     * @param file        CSV template to write
+     * @return the number of rows written
+     */
+    public static int export(File spreadsheet, File file) throws Exception {
+        ArrayList<String[]> rows = TemplateReader.readRows(spreadsheet);
+        write(rows, file);
+        return rows.size();
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+
+/**
+ * Compiled template cache.
+ *
+ * Stores the rows read from a template spreadsheet and the images encoded from
+ * them in a small binary file next to the spreadsheet, keyed by a SHA-256 hash
+ * of the spreadsheet. While the spreadsheet doesn't change the rows and images
+ * are loaded from the cache without reading the workbook at all.
+ */
+public class TemplateCache {
+    private static final int MAGIC = 0x54454453;// "TEDS"
+    private static final int VERSION = 5;// bump when the cache layout or encoding changes
+
+    public ArrayList<String[]> rows = new ArrayList<>();// { field, length, range, type, entry } for each row
+    public HashMap<Integer, byte[]> images = new HashMap<>();// encoded images by bank size
+
+    /**
+     * Gets the cache file for a template.
+     *
+     * @param template template spreadsheet
+     * @return the cache file next to the spreadsheet
+     */
+    public static File cacheFile(File template) {
+        return new File(template.getPath() + ".cache");
+    }
+
+    /**
+     * Hashes the contents of a file.
+     *
+     * @param file file to hash
+     * @return the SHA-256 hash as a hex string
+     */
+    public static String hash(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int length;
+            while ((length = in.read(buffer)) != -1)
+                digest.update(buffer, 0, length);
+        }
+        return TEDS_Writer.bytesToHex(digest.digest());
+    }
+
+    /**
+     * Reads the cache for a template if it was made from the same spreadsheet.
+     *
+     * @param template template spreadsheet
+     * @param hash     hash of the spreadsheet
+     * @return the cached rows and images, or null if there is no matching cache
+     */
+    public static TemplateCache read(File template, String hash) {
+        File file = cacheFile(template);
+        if (!file.isFile())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(hash))
+                return null;
+
+            TemplateCache cache = new TemplateCache();
+            int row_count = in.readInt();
+            for (int i = 0; i < row_count; i++) {
+                String[] row = new String[5];
+                for (int j = 0; j < row.length; j++)
+                    row[j] = in.readUTF();
+                cache.rows.add(row);
+            }
+
+            int image_count = in.readInt();
+            for (int i = 0; i < image_count; i++) {
+                byte[] image = new byte[in.readInt()];
+                in.readFully(image);
+                cache.images.put(image.length, image);
+            }
+            return cache;
+        } catch (Exception e) {
+            System.out.println("Ignoring unreadable template cache " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache for a template, replacing any previous cache.
+     *
+     * @param template template spreadsheet
+     * @param hash     hash of the spreadsheet
+     * @param rows     { field, length, range, type, entry } for each row
+     * @param images   encoded images by bank size
+     */
+    public static void write(File template, String hash, List<String[]> rows, Map<Integer, byte[]> images)
+            throws Exception {
+        File file = cacheFile(template);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(hash);
+
+            out.writeInt(rows.size());
+            for (String[] row : rows)
+                for (String value : row)
+                    out.writeUTF(value);
+
+            out.writeInt(images.size());
+            for (byte[] image : images.values()) {
+                out.writeInt(image.length);
+                out.write(image);
+            }
+        }
+
+        // replace the old cache in one step so a reader never sees half a file
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.*;
+import java.io.*;
+
+import org.apache.poi.openxml4j.opc.*;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming reader for the TEDS_Data spreadsheet.
+ *
+ * Only the first sheet and its first five columns (field, length, range, type
+ * and entry) are read, using SAX so the workbook is never loaded into memory.
+ * The shared strings part is streamed afterwards and only the strings used by
+ * those cells are kept, so memory use doesn't grow with the rest of the
+ * workbook.
+ */
+public class TemplateReader {
+    private static final int COLUMNS = 5;// field, length, range, type, entry
+
+    /**
+     * Reads the TEDS rows from the first sheet of the spreadsheet. The header row
+     * and rows without a text field name are skipped. Text cells are returned as
+     * they are and numeric cells as the string of their double value.
+     *
+     * @param file spreadsheet to read
+     * @return list of { field, length, range, type, entry } for each row
+     */
+    public static ArrayList<String[]> readRows(File file) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+
+            // read the cells of the first sheet, remembering which shared strings they use
+            SheetHandler sheet = new SheetHandler();
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext())
+                throw new Exception(file + " doesn't contain any sheets");
+            try (InputStream in = sheets.next()) {
+                parse(in, sheet);
+            }
+
+            // look up only the shared strings that were used
+            StringsHandler strings = new StringsHandler(sheet.shared);
+            if (!sheet.shared.isEmpty()) {
+                try (InputStream in = reader.getSharedStringsData()) {
+                    parse(in, strings);
+                }
+            }
+
+            ArrayList<String[]> rows = new ArrayList<>();
+            for (String[] raw : sheet.rows) {
+                String[] row = new String[COLUMNS];
+                for (int i = 0; i < COLUMNS; i++)
+                    row[i] = sheet.value(raw[i], strings.strings);
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Parses the XML stream with the handler.
+     *
+     * @param in      XML to parse
+     * @param handler SAX handler
+     */
+    private static void parse(InputStream in, DefaultHandler handler) throws Exception {
+        XMLReader parser = XMLHelper.newXMLReader();
+        parser.setContentHandler(handler);
+        parser.parse(new InputSource(in));
+    }
+
+    /**
+     * Gets the column number from a cell reference such as C12.
+     *
+     * @param ref cell reference
+     * @return the zero based column number
+     */
+    private static int column(String ref) {
+        int col = 0;
+        for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++)
+            col = col * 26 + (ref.charAt(i) - 'A' + 1);
+        return col - 1;
+    }
+
+    /**
+     * Collects the raw values of the first five columns of each row. Values are
+     * prefixed with the kind of cell: s for a shared string index, t for text and
+     * n for a number.
+     */
+    private static class SheetHandler extends DefaultHandler {
+        ArrayList<String[]> rows = new ArrayList<>();// raw values of each row after the header
+        HashSet<Integer> shared = new HashSet<>();// shared string indexes used by the rows
+        private String[] row;// raw values of the current row
+        private boolean header = true;// true until the first row has been skipped
+        private int col = -1;// column of the current cell, -1 if it isn't needed
+        private String kind;// kind of the current cell
+        private StringBuilder text = new StringBuilder();// text of the current value
+        private boolean in_value = false;// true inside a v or inline t element
+
+        @Override
+        public void startElement(String uri, String local, String name, Attributes attrs) {
+            if (local.equals("row")) {
+                row = new String[COLUMNS];
+            } else if (local.equals("c")) {
+                col = column(attrs.getValue("r"));
+                if (col >= COLUMNS)
+                    col = -1;
+                String type = attrs.getValue("t");
+                kind = (type == null || type.equals("n") || type.equals("b")) ? "n" : type.equals("s") ? "s" : "t";
+                text.setLength(0);
+            } else if (col != -1 && (local.equals("v") || local.equals("t"))) {
+                in_value = true;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (in_value)
+                text.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String local, String name) {
+            if (local.equals("v") || local.equals("t")) {
+                in_value = false;
+            } else if (local.equals("c") && col != -1) {
+                row[col] = kind + text;
+                if (kind.equals("s") && text.length() > 0)
+                    shared.add(Integer.parseInt(text.toString()));
+                col = -1;
+            } else if (local.equals("row")) {
+                if (header)
+                    header = false;
+                else if (row[0] != null && (row[0].startsWith("s") || row[0].startsWith("t")))
+                    rows.add(row);// only rows with a text field name
+            }
+        }
+
+        /**
+         * Turns a raw value into the string the TEDS data uses.
+         *
+         * @param raw     raw value from the sheet
+         * @param strings the shared strings that were looked up
+         * @return the text of the cell, or the string of its double value
+         */
+        String value(String raw, HashMap<Integer, String> strings) {
+            if (raw == null || raw.length() == 1)
+                return String.valueOf(0.0);// blank cell
+            String text = raw.substring(1);
+            if (raw.startsWith("s"))
+                return strings.get(Integer.parseInt(text));
+            if (raw.startsWith("t"))
+                return text;
+            return String.valueOf(Double.parseDouble(text));
+        }
+    }
+
+    /**
+     * Streams the shared strings part and keeps only the strings that are needed.
+     */
+    private static class StringsHandler extends DefaultHandler {
+        HashMap<Integer, String> strings = new HashMap<>();// needed strings by index
+        private HashSet<Integer> needed;// indexes to keep
+        private int index = -1;// index of the current string
+        private int depth_rph = 0;// greater than 0 inside phonetic runs, which aren't part of the text
+        private boolean in_text = false;// true inside a t element
+        private StringBuilder text = new StringBuilder();// text of the current string
+
+        StringsHandler(HashSet<Integer> needed) {
+            this.needed = needed;
+        }
+
+        @Override
+        public void startElement(String uri, String local, String name, Attributes attrs) {
+            if (local.equals("si")) {
+                index++;
+                text.setLength(0);
+            } else if (local.equals("rPh")) {
+                depth_rph++;
+            } else if (local.equals("t") && depth_rph == 0 && needed.contains(index)) {
+                in_text = true;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (in_text)
+                text.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String local, String name) {
+            if (local.equals("t")) {
+                in_text = false;
+            } else if (local.equals("rPh")) {
+                depth_rph--;
+            } else if (local.equals("si") && needed.contains(index)) {
+                strings.put(index, text.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the template whenever its file is saved.
+ *
+ * Watches the template's directory on a background thread. Spreadsheet
+ * programs save in several steps, so once the template is touched the watcher
+ * waits until nothing has happened to it for a moment before reloading. The
+ * adapter isn't touched, the new template is only used from the next unit on.
+ */
+public class TemplateWatcher implements Closeable {
+    private static final long SETTLE_MS = 500;// quiet time after a save before reloading
+    private static final int ATTEMPTS = 3;// tries to read a file that is still being saved
+
+    private TEDS_Writer writer;// writer to reload
+    private Path template;// template file
+    private WatchService watcher;// watches the template's directory
+
+    /**
+     * Starts watching the template.
+     *
+     * @param writer   writer to reload when the template changes
+     * @param template template file
+     */
+    public TemplateWatcher(TEDS_Writer writer, File template) throws IOException {
+        this.writer = writer;
+        this.template = template.getAbsoluteFile().toPath();
+        watcher = FileSystems.getDefault().newWatchService();
+        this.template.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread thread = new Thread(this::watch, "template watcher");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Watching " + template + " for changes");
+    }
+
+    /**
+     * Waits for the template to change and reloads it, until closed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                // wait for the template to be touched, then for it to settle
+                boolean touched = touched(watcher.take());
+                while (touched) {
+                    WatchKey key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                    if (key == null)
+                        break;
+                    touched(key);
+                }
+                if (touched)
+                    reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Checks if a batch of events touched the template.
+     *
+     * @param key key holding the events
+     * @return true if any event was for the template
+     */
+    private boolean touched(WatchKey key) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents())
+            if (event.context() instanceof Path && template.getFileName().equals(event.context()))
+                touched = true;
+        key.reset();
+        return touched;
+    }
+
+    /**
+     * Reloads the template, trying again if the file can't be read yet. A
+     * template that still can't be read is reported and the old one kept.
+     */
+    private void reload() throws InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                writer.reload();
+                return;
+            } catch (Exception e) {
+                if (attempt == ATTEMPTS) {
+                    System.out.println("Couldn't reload the template, still using the old one: " + e);
+                    return;
+                }
+                Thread.sleep(SETTLE_MS);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}